@@ -11,7 +11,7 @@ public class ExcelValidator {
         String outputFilePath = "output_excel_b.xlsx";
 
         try {
-            Map<String, List<Map<String, String>>> rules = readRules(ruleFilePath);
+            RuleBook rules = readRules(ruleFilePath);
             validateAndUpdateExcelB(inputFilePath, outputFilePath, rules);
             System.out.println("Validation completed. Results saved to: " + outputFilePath);
         } catch (Exception e) {
@@ -19,9 +19,9 @@ public class ExcelValidator {
         }
     }
 
-    // Read Rule Book and store as Map<String, List<Map<String, String>>>
-    private static Map<String, List<Map<String, String>>> readRules(String filePath) throws IOException {
-        Map<String, List<Map<String, String>>> rules = new HashMap<>();
+    // Read Rule Book and store rule sets per billing code
+    private static RuleBook readRules(String filePath) throws IOException {
+        RuleBook rules = new RuleBook();
 
         try (FileInputStream fis = new FileInputStream(filePath);
              Workbook workbook = new XSSFWorkbook(fis)) {
@@ -29,25 +29,31 @@ public class ExcelValidator {
             Sheet sheet = workbook.getSheetAt(0);
             Row headerRow = sheet.getRow(0);
 
-            List<String> columnNames = new ArrayList<>();
+            Set<String> columnNames = new LinkedHashSet<>();
             for (Cell cell : headerRow) {
                 columnNames.add(cell.getStringCellValue());
             }
+            rules.columnNames = columnNames.toArray(new String[0]);
+
+            // Resolve rule-book column positions once
+            int billingCodeIndex = findColumnIndex(headerRow, "BIILING_CODE");
+            int[] colIndexes = new int[rules.columnNames.length];
+            for (int c = 0; c < colIndexes.length; c++) {
+                colIndexes[c] = findColumnIndex(headerRow, rules.columnNames[c]);
+            }
 
             for (int i = 1; i <= sheet.getLastRowNum(); i++) {
                 Row row = sheet.getRow(i);
                 if (row == null) continue;
 
-                String billingCode = getCellValue(row.getCell(findColumnIndex(headerRow, "BIILING_CODE")));
-                Map<String, String> ruleSet = new HashMap<>();
+                String billingCode = getCellValue(row.getCell(billingCodeIndex));
+                String[] ruleValues = new String[colIndexes.length];
 
-                for (String columnName : columnNames) {
-                    int colIndex = findColumnIndex(headerRow, columnName);
-                    String cellValue = getCellValue(row.getCell(colIndex));
-                    ruleSet.put(columnName, cellValue);
+                for (int c = 0; c < colIndexes.length; c++) {
+                    ruleValues[c] = getCellValue(row.getCell(colIndexes[c]));
                 }
 
-                rules.computeIfAbsent(billingCode, k -> new ArrayList<>()).add(ruleSet);
+                rules.ruleSets.computeIfAbsent(billingCode, k -> new ArrayList<>()).add(new RuleSet(ruleValues));
             }
         }
         return rules;
@@ -55,13 +61,14 @@ public class ExcelValidator {
 
     // Validate Excel B and update with results
     private static void validateAndUpdateExcelB(String inputFilePath, String outputFilePath,
-                                                Map<String, List<Map<String, String>>> rules) throws IOException {
+                                                RuleBook rules) throws IOException {
         try (FileInputStream fis = new FileInputStream(inputFilePath);
              Workbook workbook = new XSSFWorkbook(fis)) {
 
             Sheet sheet = workbook.getSheetAt(0);
             Row headerRow = sheet.getRow(0);
             int validationColIndex = headerRow.getLastCellNum();
+            ColumnSchema schema = new ColumnSchema(headerRow, rules.columnNames);
 
             // Add "Validation Result" column
             headerRow.createCell(validationColIndex).setCellValue("Validation Result");
@@ -70,10 +77,10 @@ public class ExcelValidator {
                 Row row = sheet.getRow(i);
                 if (row == null) continue;
 
-                String billingCode = getCellValue(row.getCell(findColumnIndex(headerRow, "BIILING_CODE")));
-                List<Map<String, String>> ruleSets = rules.getOrDefault(billingCode, new ArrayList<>());
+                String billingCode = getCellValue(row.getCell(schema.billingCodeIndex));
+                List<RuleSet> ruleSets = rules.ruleSets.getOrDefault(billingCode, Collections.emptyList());
 
-                boolean isValid = validateRowAgainstRules(row, headerRow, ruleSets);
+                boolean isValid = validateRowAgainstRules(schema.readValues(row), ruleSets);
                 row.createCell(validationColIndex).setCellValue(isValid ? "Correct" : "Wrong");
             }
 
@@ -85,16 +92,11 @@ public class ExcelValidator {
     }
 
     // Validate a single row against multiple rule sets
-    private static boolean validateRowAgainstRules(Row row, Row headerRow, List<Map<String, String>> ruleSets) {
-        for (Map<String, String> ruleSet : ruleSets) {
+    private static boolean validateRowAgainstRules(String[] actualValues, List<RuleSet> ruleSets) {
+        for (RuleSet ruleSet : ruleSets) {
             boolean isMatch = true;
-            for (Map.Entry<String, String> rule : ruleSet.entrySet()) {
-                String columnName = rule.getKey();
-                String expectedValue = rule.getValue();
-                int colIndex = findColumnIndex(headerRow, columnName);
-                String actualValue = getCellValue(row.getCell(colIndex));
-
-                if (!validateCellValue(expectedValue, actualValue)) {
+            for (int c = 0; c < ruleSet.rules.length; c++) {
+                if (!validateCellValue(ruleSet.rules[c], actualValues[c])) {
                     isMatch = false;
                     break;
                 }
@@ -104,18 +106,9 @@ public class ExcelValidator {
         return false; // All rule sets failed
     }
 
-    // Validate cell value based on rule
-    private static boolean validateCellValue(String expectedValue, String actualValue) {
-        if (expectedValue.equalsIgnoreCase("Not Used")) return true; // Any value is valid
-        if (expectedValue.startsWith("<>")) { // Exclusion rule
-            String[] excludedValues = expectedValue.substring(3, expectedValue.length() - 1).split(",");
-            return Arrays.stream(excludedValues).noneMatch(val -> val.trim().equalsIgnoreCase(actualValue));
-        }
-        if (expectedValue.contains(",")) { // Multiple values allowed
-            String[] allowedValues = expectedValue.split(",");
-            return Arrays.stream(allowedValues).anyMatch(val -> val.trim().equalsIgnoreCase(actualValue));
-        }
-        return expectedValue.equalsIgnoreCase(actualValue); // Exact match
+    // Validate cell value against its compiled rule
+    private static boolean validateCellValue(CellRule rule, String actualValue) {
+        return rule.matches(actualValue);
     }
 
     // Helper method to get cell value as String
@@ -137,4 +130,97 @@ public class ExcelValidator {
         }
         throw new IllegalArgumentException("Column " + columnName + " not found");
     }
+
+    // Rule book: column names in rule-book order and rule sets per billing code
+    private static class RuleBook {
+        String[] columnNames;
+        Map<String, List<RuleSet>> ruleSets = new HashMap<>();
+    }
+
+    // Rule book row: raw values for the output plus the compiled rules, aligned to RuleBook.columnNames
+    private static class RuleSet {
+        String[] values;
+        CellRule[] rules;
+
+        RuleSet(String[] values) {
+            this.values = values;
+            this.rules = new CellRule[values.length];
+            for (int c = 0; c < values.length; c++) {
+                rules[c] = CellRule.compile(values[c]);
+            }
+        }
+    }
+
+    // Rule-book columns resolved once against the Excel B header row
+    private static class ColumnSchema {
+        int billingCodeIndex;
+        int[] columnIndexes;
+
+        ColumnSchema(Row headerRow, String[] columnNames) {
+            billingCodeIndex = findColumnIndex(headerRow, "BIILING_CODE");
+            columnIndexes = new int[columnNames.length];
+            for (int c = 0; c < columnNames.length; c++) {
+                columnIndexes[c] = findColumnIndex(headerRow, columnNames[c]);
+            }
+        }
+
+        // Read the rule-relevant cells of a row, aligned to the rule-book columns
+        String[] readValues(Row row) {
+            String[] values = new String[columnIndexes.length];
+            for (int c = 0; c < columnIndexes.length; c++) {
+                values[c] = getCellValue(row.getCell(columnIndexes[c]));
+            }
+            return values;
+        }
+    }
+
+    // Rule cell compiled once when the rule book is read
+    private static class CellRule {
+        enum Kind { ANY, EXACT, ALLOW, DENY }
+
+        Kind kind;
+        String exactValue;
+        Set<String> values;
+
+        CellRule(Kind kind, String exactValue, Set<String> values) {
+            this.kind = kind;
+            this.exactValue = exactValue;
+            this.values = values;
+        }
+
+        static CellRule compile(String expectedValue) {
+            if (expectedValue.equalsIgnoreCase("Not Used")) { // Any value is valid
+                return new CellRule(Kind.ANY, null, null);
+            }
+            if (expectedValue.startsWith("<>")) { // Exclusion rule, e.g. <>(A,B)
+                String excluded = expectedValue.length() > 3 ? expectedValue.substring(3, expectedValue.length() - 1) : "";
+                return new CellRule(Kind.DENY, null, foldAll(excluded.split(",")));
+            }
+            if (expectedValue.contains(",")) { // Multiple values allowed
+                return new CellRule(Kind.ALLOW, null, foldAll(expectedValue.split(",")));
+            }
+            return new CellRule(Kind.EXACT, fold(expectedValue), null); // Exact match
+        }
+
+        boolean matches(String actualValue) {
+            switch (kind) {
+                case ANY: return true;
+                case DENY: return !values.contains(fold(actualValue));
+                case ALLOW: return values.contains(fold(actualValue));
+                default: return exactValue.equals(fold(actualValue));
+            }
+        }
+
+        private static Set<String> foldAll(String[] rawValues) {
+            Set<String> folded = new HashSet<>();
+            for (String value : rawValues) {
+                folded.add(fold(value.trim()));
+            }
+            return folded;
+        }
+
+        private static String fold(String value) {
+            return value.toLowerCase(Locale.ROOT);
+        }
+    }
 }
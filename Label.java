@@ -6,6 +6,7 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.*;
+import java.util.regex.Pattern;
 
 public class ExcelValidator {
 
@@ -18,10 +19,11 @@ public class ExcelValidator {
 
             // Read Excel files
             List<Map<String, String>> ruleBookData = readExcel(ruleBookPath);
-            List<Map<String, String>> targetData = readExcel(targetFilePath);
+            List<Map<String, Double>> targetNumbers = new ArrayList<>();
+            List<Map<String, String>> targetData = readExcel(targetFilePath, targetNumbers);
 
             // Validate data
-            List<Map<String, String>> validatedData = validateData(ruleBookData, targetData);
+            List<Map<String, String>> validatedData = validateData(ruleBookData, targetData, targetNumbers);
 
             // Write output to a new Excel file
             writeExcel(validatedData, outputPath);
@@ -35,6 +37,12 @@ public class ExcelValidator {
 
     // Reads an Excel file and returns data as a list of maps (each map represents a row)
     private static List<Map<String, String>> readExcel(String filePath) throws IOException {
+        return readExcel(filePath, null);
+    }
+
+    // Same, and when numbers is given also collects each row's numeric cells untruncated, for range rules
+    private static List<Map<String, String>> readExcel(String filePath, List<Map<String, Double>> numbers)
+            throws IOException {
         List<Map<String, String>> data = new ArrayList<>();
         try (FileInputStream fis = new FileInputStream(new File(filePath));
              Workbook workbook = new XSSFWorkbook(fis)) {
@@ -53,11 +61,17 @@ public class ExcelValidator {
             while (rowIterator.hasNext()) {
                 Row row = rowIterator.next();
                 Map<String, String> rowData = new HashMap<>();
+                Map<String, Double> rowNumbers = numbers != null ? new HashMap<>() : null;
                 for (int i = 0; i < headers.size(); i++) {
                     Cell cell = row.getCell(i, Row.MissingCellPolicy.CREATE_NULL_AS_BLANK);
                     rowData.put(headers.get(i), getCellValueAsString(cell));
+                    if (rowNumbers != null && cell.getCellType() == CellType.NUMERIC
+                            && !DateUtil.isCellDateFormatted(cell)) {
+                        rowNumbers.put(headers.get(i), cell.getNumericCellValue());
+                    }
                 }
                 data.add(rowData);
+                if (numbers != null) numbers.add(rowNumbers);
             }
         }
         return data;
@@ -83,28 +97,36 @@ public class ExcelValidator {
     }
 
     // Validates target data against the rule book
-    private static List<Map<String, String>> validateData(List<Map<String, String>> ruleBookData, List<Map<String, String>> targetData) {
-        Map<String, Map<String, String>> ruleMap = new HashMap<>();
+    // targetNumbers holds each target row's numeric cells untruncated; range rules compare against those
+    private static List<Map<String, String>> validateData(List<Map<String, String>> ruleBookData,
+                                                          List<Map<String, String>> targetData,
+                                                          List<Map<String, Double>> targetNumbers) {
+        Map<String, Map<String, Rule>> ruleMap = new HashMap<>();
 
-        // Build a map for quick access to rules by BIILING_CODE
+        // Build a map for quick access to rules by BIILING_CODE, compiling each rule once
         for (Map<String, String> ruleRow : ruleBookData) {
             String billingCode = ruleRow.get("BIILING_CODE");
-            ruleMap.put(billingCode, ruleRow);
+            Map<String, Rule> compiledRules = new HashMap<>();
+            for (Map.Entry<String, String> rule : ruleRow.entrySet()) {
+                compiledRules.put(rule.getKey(), Rule.compile(rule.getValue()));
+            }
+            ruleMap.put(billingCode, compiledRules);
         }
 
         // Validate target data
-        for (Map<String, String> targetRow : targetData) {
+        for (int r = 0; r < targetData.size(); r++) {
+            Map<String, String> targetRow = targetData.get(r);
             String billingCode = targetRow.get("BIILING_CODE");
-            Map<String, String> rules = ruleMap.get(billingCode);
+            Map<String, Rule> rules = ruleMap.get(billingCode);
 
             if (rules != null) {
                 boolean isValid = true;
                 for (String column : rules.keySet()) {
                     if (!column.equals("BIILING_CODE")) {
-                        String ruleValue = rules.get(column);
+                        Rule ruleValue = rules.get(column);
                         String targetValue = targetRow.get(column);
 
-                        if (!matchesRule(ruleValue, targetValue)) {
+                        if (!matchesRule(ruleValue, targetValue, targetNumbers.get(r).get(column))) {
                             isValid = false;
                             break;
                         }
@@ -119,31 +141,178 @@ public class ExcelValidator {
         return targetData;
     }
 
-    // Checks if a target value matches a rule
-    private static boolean matchesRule(String rule, String value) {
-        if (rule.equals("Not Used")) {
-            return true; // Any value is valid
-        } else if (rule.startsWith("<>") && rule.contains(",")) {
-            // Handle rules like <>(v,n) or <>(b,c)
-            String[] invalidValues = rule.substring(2).split(",");
-            for (String invalid : invalidValues) {
-                if (value.equals(invalid.trim())) {
-                    return false;
+    // Checks if a target value matches a compiled rule. number is the cell's untruncated numeric value, null for
+    // other cells; range rules use it since the text of a number has its fraction cut off
+    private static boolean matchesRule(Rule rule, String value, Double number) {
+        switch (rule.kind) {
+            case ANY:
+                return true;
+            case DENY:
+                return !rule.values.contains(value);
+            case ALLOW:
+                // Handle multiple valid values like G,H
+                return rule.values.contains(value);
+            case RANGE:
+                return value != null && rule.inRange(number != null ? number : Rule.number(value));
+            case PREFIX:
+                return value != null && (rule.values.contains(value) || rule.prefixes.hasPrefixOf(value));
+            case REGEX:
+                return value != null && rule.pattern.matcher(value).matches();
+            default:
+                // Handle single value
+                return rule.exactValue.equals(value);
+        }
+    }
+
+    // A rule-book cell parsed once: value lists become sets, numeric bounds doubles, AB* prefixes a trie and
+    // re: patterns compiled regular expressions
+    private static class Rule {
+        enum Kind { ANY, EXACT, ALLOW, DENY, RANGE, PREFIX, REGEX }
+
+        Kind kind;
+        String exactValue;
+        Set<String> values;
+        double lowerBound = Double.NEGATIVE_INFINITY; // e.g. >=100 or 10..20
+        double upperBound = Double.POSITIVE_INFINITY;
+        boolean lowerInclusive = true;
+        boolean upperInclusive = true;
+        PrefixTrie prefixes;
+        Pattern pattern;
+
+        Rule(Kind kind, Set<String> values) {
+            this.kind = kind;
+            this.values = values;
+        }
+
+        static Rule compile(String rule) {
+            if (rule.equals("Not Used")) {
+                return new Rule(Kind.ANY, null); // Any value is valid
+            }
+            if (rule.startsWith("re:")) {
+                Rule regex = new Rule(Kind.REGEX, null);
+                regex.pattern = Pattern.compile(rule.substring(3));
+                return regex;
+            }
+            if (rule.startsWith("<>") && rule.contains(",")) {
+                // Handle rules like <>(v,n) or <>(b,c)
+                return new Rule(Kind.DENY, trimAll(rule.substring(2).split(",")));
+            }
+
+            // Handle numeric comparisons and ranges: e.g., ">=100" or "10..20"
+            Rule range = compileRange(rule);
+            if (range != null) {
+                return range;
+            }
+
+            // Handle multiple valid values and prefixes: e.g., "B,C" or "AB*,CD"
+            if (rule.contains(",") || rule.endsWith("*")) {
+                Set<String> values = new HashSet<>();
+                PrefixTrie prefixes = null;
+                for (String value : rule.split(",")) {
+                    value = value.trim();
+                    if (value.endsWith("*")) {
+                        if (prefixes == null) prefixes = new PrefixTrie();
+                        prefixes.add(value.substring(0, value.length() - 1));
+                    } else {
+                        values.add(value);
+                    }
                 }
+                Rule list = new Rule(prefixes != null ? Kind.PREFIX : Kind.ALLOW, values);
+                list.prefixes = prefixes;
+                return list;
             }
-            return true;
-        } else if (rule.contains(",")) {
-            // Handle multiple valid values like G,H
-            String[] validValues = rule.split(",");
-            for (String valid : validValues) {
-                if (value.equals(valid.trim())) {
-                    return true;
+
+            Rule exact = new Rule(Kind.EXACT, null);
+            exact.exactValue = rule;
+            return exact;
+        }
+
+        // ">=100", ">100", "<=100", "<100" or "10..20" (inclusive); null when the text is not numeric
+        private static Rule compileRange(String rule) {
+            String text = rule.trim();
+            Rule range = new Rule(Kind.RANGE, null);
+            if (text.startsWith(">")) {
+                range.lowerInclusive = text.startsWith(">=");
+                range.lowerBound = number(text.substring(range.lowerInclusive ? 2 : 1));
+                return Double.isNaN(range.lowerBound) ? null : range;
+            }
+            if (text.startsWith("<")) {
+                range.upperInclusive = text.startsWith("<=");
+                range.upperBound = number(text.substring(range.upperInclusive ? 2 : 1));
+                return Double.isNaN(range.upperBound) ? null : range;
+            }
+            int dots = text.indexOf("..");
+            if (dots > 0) {
+                range.lowerBound = number(text.substring(0, dots));
+                range.upperBound = number(text.substring(dots + 2));
+                return Double.isNaN(range.lowerBound) || Double.isNaN(range.upperBound) ? null : range;
+            }
+            return null;
+        }
+
+        boolean inRange(double number) {
+            // NaN, for a value that is not a number, fails every comparison
+            return (lowerInclusive ? number >= lowerBound : number > lowerBound)
+                    && (upperInclusive ? number <= upperBound : number < upperBound);
+        }
+
+        // NaN unless the text is a finite decimal number
+        static double number(String text) {
+            try {
+                double number = Double.parseDouble(text.trim());
+                return Double.isInfinite(number) ? Double.NaN : number;
+            } catch (NumberFormatException e) {
+                return Double.NaN;
+            }
+        }
+
+        private static Set<String> trimAll(String[] rawValues) {
+            Set<String> values = new HashSet<>();
+            for (String value : rawValues) {
+                values.add(value.trim());
+            }
+            return values;
+        }
+    }
+
+    // Prefixes of "AB*" rule values; children are kept sorted by character so a lookup allocates nothing
+    private static class PrefixTrie {
+        private char[] labels = new char[0];
+        private PrefixTrie[] children = new PrefixTrie[0];
+        private boolean end;
+
+        void add(String prefix) {
+            PrefixTrie node = this;
+            for (int i = 0; i < prefix.length(); i++) {
+                char label = prefix.charAt(i);
+                int slot = Arrays.binarySearch(node.labels, label);
+                if (slot < 0) {
+                    slot = -slot - 1;
+                    char[] labels = new char[node.labels.length + 1];
+                    PrefixTrie[] children = new PrefixTrie[node.children.length + 1];
+                    System.arraycopy(node.labels, 0, labels, 0, slot);
+                    System.arraycopy(node.children, 0, children, 0, slot);
+                    System.arraycopy(node.labels, slot, labels, slot + 1, node.labels.length - slot);
+                    System.arraycopy(node.children, slot, children, slot + 1, node.children.length - slot);
+                    labels[slot] = label;
+                    children[slot] = new PrefixTrie();
+                    node.labels = labels;
+                    node.children = children;
                 }
+                node = node.children[slot];
             }
-            return false;
-        } else {
-            // Handle single value
-            return rule.equals(value);
+            node.end = true;
+        }
+
+        boolean hasPrefixOf(String value) {
+            PrefixTrie node = this;
+            for (int i = 0; !node.end; i++) {
+                if (i == value.length()) return false;
+                int slot = Arrays.binarySearch(node.labels, value.charAt(i));
+                if (slot < 0) return false;
+                node = node.children[slot];
+            }
+            return true;
         }
     }
 
@@ -1,27 +1,252 @@
+package validator;
+
+import org.apache.poi.openxml4j.exceptions.OpenXML4JException;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
 import org.apache.poi.ss.usermodel.*;
+import org.apache.poi.util.XMLHelper;
+import org.apache.poi.xssf.eventusermodel.ReadOnlySharedStringsTable;
+import org.apache.poi.xssf.eventusermodel.XSSFReader;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
 import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.DefaultHandler;
 
+import javax.xml.parsers.ParserConfigurationException;
 import java.io.*;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
 
 public class ExcelValidator {
+    // Rows of the "Validation Results" sheet kept in memory before older ones are flushed to a temp file
+    private static final int OUTPUT_ROW_WINDOW = Integer.getInteger("validator.outputRowWindow", 1000);
+    private static final boolean COMPRESS_TEMP_FILES =
+            Boolean.parseBoolean(System.getProperty("validator.compressTempFiles", "true"));
+    // Worker threads for row validation; 1 validates inline on the reading thread
+    private static final int VALIDATION_THREADS = Integer.getInteger("validator.threads", 1);
+    private static final int VALIDATION_CHUNK_SIZE = Integer.getInteger("validator.chunkSize", 4096);
+    // Write per-rule, per-column and phase metrics to "<output file>.metrics.json" after each run
+    private static final boolean COLLECT_METRICS = Boolean.getBoolean("validator.metrics");
+    // "report" lists rule sets that can never be the first match when the rule book loads, "prune" also drops them
+    private static final String RULE_ANALYSIS = System.getProperty("validator.ruleAnalysis", "off");
+    // Excel B files validated at the same time in batch mode, which bounds how many workbooks are open at once
+    private static final int BATCH_OPEN_FILES = Integer.getInteger("validator.batchFiles", 2);
+    // Match rows with MethodHandle chains generated per index leaf; matchercheck.java compares them with the
+    // interpreted loop on generated rule books
+    private static final boolean GENERATED_MATCHERS = Boolean.getBoolean("validator.generatedMatchers");
+    // Try each billing code's most often matched rule sets first, where that cannot change which one matches first.
+    // Match counts are kept in "<rule book>.hits" across runs; candidates are reordered every adaptiveInterval rows.
+    private static final boolean ADAPTIVE_ORDER = Boolean.getBoolean("validator.adaptiveOrder");
+    private static final long ADAPTIVE_INTERVAL = Long.getLong("validator.adaptiveInterval", 50000);
+    // Excel B file whose first rows give the value spread used to order each rule set's column checks; without
+    // it the order comes from the rule book alone
+    private static final String SELECTIVITY_SAMPLE = System.getProperty("validator.selectivitySample");
+    private static final int SELECTIVITY_SAMPLE_ROWS = Integer.getInteger("validator.selectivitySampleRows", 10000);
+    // Slots of the cache of results by rule-column values, rounded down to a power of two; 0 turns it off
+    private static final int RESULT_CACHE_ENTRIES = Integer.getInteger("validator.resultCacheEntries", 0);
+    // For a Wrong row, also score the rule sets the index ruled out when looking for the nearest one. Those rows
+    // then cost a second scan over their whole billing code; by default only the index's candidates are scored.
+    private static final boolean NEAREST_IN_BILLING_CODE = Boolean.getBoolean("validator.nearestInBillingCode");
+    // Excel B column that picks each row's rule book from validator.ruleBooks, e.g. "BRANCH" with
+    // "LON=rules_lon.xlsx,PAR=rules_par.xlsx,*=rules.xlsx"; "*" takes values without a rule book of their own
+    private static final String ROUTING_COLUMN = System.getProperty("validator.routingColumn");
+    private static final String RULE_BOOK_ROUTES = System.getProperty("validator.ruleBooks", "");
+    // Rule cells (rule sets times columns) of the compiled rule books kept for reuse across loads in one process
+    private static final long RULE_CACHE_CELLS = Long.getLong("validator.ruleCacheCells", 5_000_000);
+    // Write each input row once with the id of its matched rule row, listed once on a "Rules" sheet, instead of
+    // following it with a copy of that rule row; correctSampleRate N keeps every Nth Correct row and drops the rest
+    private static final boolean COMPACT_REPORT = Boolean.getBoolean("validator.compactReport");
+    private static final int CORRECT_SAMPLE_RATE = Integer.getInteger("validator.correctSampleRate", 1);
+
     public static void main(String[] args) {
         String ruleFilePath = "path_to_rule_book.xlsx";
         String inputFilePath = "path_to_excel_b.xlsx";
         String outputFilePath = "output_excel_b.xlsx";
+        String outputDirectory = "validated_excel_b";  // Batch mode writes each output under the input's file name
+        boolean streamInput = Arrays.asList(args).contains("--stream"); // Read Excel B without loading it into memory
+        boolean incremental = Arrays.asList(args).contains("--incremental"); // Reuse results of unchanged rows
 
         try {
-            Map<String, List<Map<String, String>>> rules = readRules(ruleFilePath);
-            validateAndUpdateExcelB(inputFilePath, outputFilePath, rules);
+            if (Arrays.asList(args).contains("--serve")) {
+                if (ROUTING_COLUMN != null) {
+                    System.err.println("--serve watches a single rule book; unset validator.routingColumn");
+                    return;
+                }
+                serve(ruleFilePath, streamInput, incremental);
+                return;
+            }
+            if (Arrays.asList(args).contains("--batch")) {
+                // Remaining arguments are Excel B files or directories of them
+                List<String> inputs = new ArrayList<>();
+                for (String arg : args) {
+                    if (!arg.startsWith("--")) inputs.add(arg);
+                }
+                batch(ruleFilePath, inputs, outputDirectory, streamInput, incremental);
+                return;
+            }
+
+            RuleBook rules = loadConfiguredRules(ruleFilePath);
+            validate(inputFilePath, outputFilePath, rules, streamInput, incremental);
             System.out.println("Validation completed. Results saved to: " + outputFilePath);
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
-    // Read Rule Book and store as Map<String, List<Map<String, String>>>
-    private static Map<String, List<Map<String, String>>> readRules(String filePath) throws IOException {
-        Map<String, List<Map<String, String>>> rules = new HashMap<>();
+    // Returns the number of Excel B rows validated
+    private static int validate(String inputFilePath, String outputFilePath, RuleBook rules,
+                                boolean streamInput, boolean incremental) throws IOException {
+        if (rules.routingColumn != null && (COLLECT_METRICS || incremental)) {
+            // Both are numbered and versioned per rule book
+            System.err.println("Metrics and --incremental are not available with validator.routingColumn, ignoring them");
+            incremental = false;
+        }
+        ValidationMetrics metrics = COLLECT_METRICS && rules.routingColumn == null ? new ValidationMetrics(rules) : null;
+        // Results of the previous run over this input are kept next to it
+        ResultStore store = incremental ? ResultStore.open(Paths.get(inputFilePath + ".results"), rules) : null;
+        long start = System.nanoTime();
+        int rows;
+        if (streamInput) {
+            rows = validateAndUpdateExcelBStreaming(inputFilePath, outputFilePath, rules, metrics, store);
+        } else {
+            rows = validateAndUpdateExcelB(inputFilePath, outputFilePath, rules, metrics, store);
+        }
+        if (store != null) {
+            store.save();
+            System.out.println("Reused " + store.reusedRows + " stored results, validated " + store.validatedRows + " rows");
+        }
+        if (metrics != null) {
+            metrics.totalNanos = System.nanoTime() - start;
+            metrics.write(Paths.get(outputFilePath + ".metrics.json"), inputFilePath);
+        }
+        for (RuleBook ruleBook : rules.routedRuleBooks()) {
+            if (ruleBook.adaptiveOrder != null) {
+                ruleBook.adaptiveOrder.reorder(ruleBook);
+                ruleBook.adaptiveOrder.save(ruleBook);
+            }
+        }
+        return rows;
+    }
+
+    // Long-lived mode: validate each "<input file> <output file>" line from stdin against the current rule book,
+    // which is reloaded in the background whenever the rule-book file changes
+    private static void serve(String ruleFilePath, boolean streamInput, boolean incremental) throws IOException {
+        try (RuleRegistry registry = new RuleRegistry(ruleFilePath);
+             BufferedReader commands = new BufferedReader(new InputStreamReader(System.in))) {
+            System.out.println("Serving with rule book version " + registry.current().version);
+
+            String line;
+            while ((line = commands.readLine()) != null) {
+                if (line.trim().isEmpty()) continue;
+                String[] paths = line.trim().split("\\s+");
+                if (paths.length != 2) {
+                    System.err.println("Expected: <input file> <output file>");
+                    continue;
+                }
+
+                // A run keeps the rule book it started with, even if a reload happens meanwhile
+                RuleBook rules = registry.current();
+                try {
+                    validate(paths[0], paths[1], rules, streamInput, incremental);
+                    System.out.println("Validated " + paths[0] + " with rule book version " + rules.version
+                            + ". Results saved to: " + paths[1]);
+                } catch (Exception e) {
+                    System.err.println("Validation of " + paths[0] + " failed: " + e);
+                }
+            }
+        }
+    }
+
+    // Validate many Excel B files against one loaded rule book on a pool of BATCH_OPEN_FILES threads, so at most
+    // that many input and output workbooks are open at a time. A failed file is reported and the batch goes on
+    private static void batch(String ruleFilePath, List<String> inputs, String outputDirectory,
+                              boolean streamInput, boolean incremental) throws IOException, InterruptedException {
+        RuleBook rules = loadConfiguredRules(ruleFilePath);
+        List<Path> inputFiles = batchInputFiles(inputs);
+        Files.createDirectories(Paths.get(outputDirectory));
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(BATCH_OPEN_FILES, 1));
+        LongAdder totalRows = new LongAdder();
+        LongAdder failedFiles = new LongAdder();
+        Set<String> outputNames = new HashSet<>();
+        long batchStart = System.nanoTime();
+        for (Path inputFile : inputFiles) {
+            String outputFilePath = Paths.get(outputDirectory, inputFile.getFileName().toString()).toString();
+            if (!outputNames.add(outputFilePath)) {
+                System.err.println("Skipping " + inputFile + ": another input already writes " + outputFilePath);
+                failedFiles.increment();
+                continue;
+            }
+            pool.execute(() -> {
+                long start = System.nanoTime();
+                try {
+                    int rows = validate(inputFile.toString(), outputFilePath, rules, streamInput, incremental);
+                    totalRows.add(rows);
+                    System.out.println("Validated " + inputFile + ": " + throughput(rows, System.nanoTime() - start)
+                            + ". Results saved to: " + outputFilePath);
+                } catch (Exception e) {
+                    failedFiles.increment();
+                    System.err.println("Validation of " + inputFile + " failed: " + e);
+                }
+            });
+        }
+        pool.shutdown();
+        pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+
+        System.out.println("Batch completed: " + (inputFiles.size() - failedFiles.sum()) + " of " + inputFiles.size()
+                + " files, " + throughput(totalRows.sum(), System.nanoTime() - batchStart)
+                + " with rule book version " + rules.version);
+    }
+
+    // Files are taken as given; directories contribute their .xlsx files in name order
+    private static List<Path> batchInputFiles(List<String> inputs) throws IOException {
+        List<Path> inputFiles = new ArrayList<>();
+        for (String input : inputs) {
+            Path path = Paths.get(input);
+            if (!Files.isDirectory(path)) {
+                inputFiles.add(path);
+                continue;
+            }
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(path, "*.xlsx")) {
+                List<Path> directoryFiles = new ArrayList<>();
+                for (Path file : files) {
+                    if (Files.isRegularFile(file)) directoryFiles.add(file);
+                }
+                Collections.sort(directoryFiles);
+                inputFiles.addAll(directoryFiles);
+            }
+        }
+        return inputFiles;
+    }
+
+    // e.g. "120000 rows in 2.4 s (50000 rows/s)"
+    private static String throughput(long rows, long nanos) {
+        double seconds = nanos / 1e9;
+        return String.format(Locale.ROOT, "%d rows in %.1f s (%.0f rows/s)", rows, seconds,
+                seconds > 0 ? rows / seconds : 0.0);
+    }
+
+    // Read Rule Book and store rule sets per billing code
+    static RuleBook readRules(String filePath) throws IOException {
+        RuleBook rules = new RuleBook();
 
         try (FileInputStream fis = new FileInputStream(filePath);
              Workbook workbook = new XSSFWorkbook(fis)) {
@@ -29,41 +254,196 @@ public class ExcelValidator {
             Sheet sheet = workbook.getSheetAt(0);
             Row headerRow = sheet.getRow(0);
 
-            List<String> columnNames = new ArrayList<>();
+            Set<String> columnNames = new LinkedHashSet<>();
             for (Cell cell : headerRow) {
                 columnNames.add(cell.getStringCellValue());
             }
+            rules.columnNames = columnNames.toArray(new String[0]);
+
+            // Resolve rule-book column positions once
+            int billingCodeIndex = findColumnIndex(headerRow, "BIILING_CODE");
+            int[] colIndexes = new int[rules.columnNames.length];
+            for (int c = 0; c < colIndexes.length; c++) {
+                colIndexes[c] = findColumnIndex(headerRow, rules.columnNames[c]);
+            }
 
             for (int i = 1; i <= sheet.getLastRowNum(); i++) {
                 Row row = sheet.getRow(i);
                 if (row == null) continue;
 
-                String billingCode = getCellValue(row.getCell(findColumnIndex(headerRow, "BIILING_CODE")));
-                Map<String, String> ruleSet = new HashMap<>();
+                String billingCode = getCellValue(row.getCell(billingCodeIndex));
+                String[] ruleValues = new String[colIndexes.length];
 
-                for (String columnName : columnNames) {
-                    int colIndex = findColumnIndex(headerRow, columnName);
-                    String cellValue = getCellValue(row.getCell(colIndex));
-                    ruleSet.put(columnName, cellValue);
+                for (int c = 0; c < colIndexes.length; c++) {
+                    ruleValues[c] = getCellValue(row.getCell(colIndexes[c]));
                 }
 
-                rules.computeIfAbsent(billingCode, k -> new ArrayList<>()).add(ruleSet);
+                rules.ruleSets.computeIfAbsent(billingCode, k -> new ArrayList<>()).add(new RuleSet(ruleValues));
+            }
+        }
+
+        rules.buildIndexes();
+        return rules;
+    }
+
+    // The rule book of a run: the one at ruleFilePath, or with validator.routingColumn those of validator.ruleBooks
+    private static RuleBook loadConfiguredRules(String ruleFilePath) throws IOException {
+        return ROUTING_COLUMN != null ? loadRoutedRules(ROUTING_COLUMN, RULE_BOOK_ROUTES) : loadRules(ruleFilePath);
+    }
+
+    // Load rule books for "value=file,...,*=file" and send each row to the one named by its routing-column value.
+    // The rule books must have the same columns, since rows are read once for all of them.
+    private static RuleBook loadRoutedRules(String routingColumn, String routeSpec) throws IOException {
+        RuleBook rules = new RuleBook();
+        rules.routingColumn = routingColumn;
+        rules.routes = new LinkedHashMap<>();
+        StringBuilder versions = new StringBuilder();
+        for (String route : routeSpec.split(",")) {
+            if (route.trim().isEmpty()) continue;
+            int separator = route.indexOf('=');
+            if (separator < 0) {
+                throw new IllegalArgumentException("Expected <routing value>=<rule book> in validator.ruleBooks: " + route);
+            }
+            String routingValue = route.substring(0, separator).trim();
+            String filePath = route.substring(separator + 1).trim();
+            RuleBook ruleBook = loadRules(filePath);
+            if (rules.columnNames == null) {
+                rules.columnNames = ruleBook.columnNames;
+            } else if (!Arrays.equals(rules.columnNames, ruleBook.columnNames)) {
+                throw new IllegalArgumentException("Rule book " + filePath + " has columns " + Arrays.toString(ruleBook.columnNames)
+                        + ", routed rule books need " + Arrays.toString(rules.columnNames));
+            }
+            if (routingValue.equals("*")) {
+                rules.defaultRoute = ruleBook;
+            } else {
+                rules.routes.put(routingValue, ruleBook);
+            }
+            versions.append(routingValue).append('=').append(ruleBook.version).append(',');
+        }
+        if (rules.columnNames == null) {
+            throw new IllegalArgumentException("validator.routingColumn is set but validator.ruleBooks names no rule book");
+        }
+        rules.version = toHex(sha256(versions.toString().getBytes(StandardCharsets.UTF_8)));
+        if (RESULT_CACHE_ENTRIES > 0) {
+            rules.resultCache = new ResultCache(RESULT_CACHE_ENTRIES); // Entries are told apart by index, so books share it
+        }
+        return rules;
+    }
+
+    // Compiled rule book for the file's current content, from this process's rule cache when it was loaded before
+    private static RuleBook loadRules(String filePath) throws IOException {
+        long start = System.nanoTime();
+        byte[] hash = contentHash(Paths.get(filePath));
+        String key = Paths.get(filePath).toAbsolutePath() + "@" + toHex(hash);
+        RuleBook rules = RuleBookCache.get(key);
+        if (rules == null) {
+            rules = compileRules(filePath, hash, start);
+            RuleBookCache.put(key, rules);
+        }
+        return rules;
+    }
+
+    // Load rules from the compiled snapshot next to the rule book, rebuilding it when the rule book has changed
+    private static RuleBook compileRules(String filePath, byte[] hash, long start) throws IOException {
+        Path snapshot = Paths.get(filePath + ".snapshot");
+
+        RuleBook rules = RuleSnapshot.read(snapshot, hash);
+        if (rules == null) {
+            rules = readRules(filePath);
+            try {
+                RuleSnapshot.write(snapshot, hash, rules);
+            } catch (IOException e) {
+                System.err.println("Could not save rule snapshot " + snapshot + ": " + e.getMessage());
+            }
+        }
+        rules.version = toHex(hash);
+
+        if (!RULE_ANALYSIS.equals("off")) {
+            List<RuleAnalyzer.Finding> findings = RuleAnalyzer.analyze(rules);
+            for (RuleAnalyzer.Finding finding : findings) {
+                System.out.println(finding);
+            }
+            if (RULE_ANALYSIS.equals("prune") && !findings.isEmpty()) {
+                RuleAnalyzer.prune(rules, findings);
+                System.out.println("Dropped " + findings.size() + " unreachable rule sets");
+            }
+        }
+        if (SELECTIVITY_SAMPLE != null) {
+            try {
+                ValueSample sample = ValueSample.read(SELECTIVITY_SAMPLE, rules.columnNames, SELECTIVITY_SAMPLE_ROWS);
+                Selectivity.orderChecks(rules, sample.valueCounts, sample.rows);
+                if (GENERATED_MATCHERS) {
+                    MatcherCompiler.compile(rules); // Follow the new check order
+                }
+            } catch (IOException | IllegalArgumentException e) {
+                System.err.println("Could not sample " + SELECTIVITY_SAMPLE + ", column checks follow the rule book: "
+                        + e.getMessage());
             }
         }
+        if (RESULT_CACHE_ENTRIES > 0) {
+            rules.resultCache = new ResultCache(RESULT_CACHE_ENTRIES);
+        }
+        if (ADAPTIVE_ORDER) {
+            rules.adaptiveOrder = new AdaptiveOrder(Paths.get(filePath + ".hits"));
+            rules.adaptiveOrder.load(rules);
+            rules.adaptiveOrder.reorder(rules);
+        }
+        rules.loadNanos = System.nanoTime() - start;
         return rules;
     }
 
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    private static byte[] sha256(byte[] bytes) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(bytes);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // SHA-256 of a file's content
+    private static byte[] contentHash(Path file) throws IOException {
+        try (InputStream in = Files.newInputStream(file)) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, read);
+            }
+            return digest.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
     // Validate Excel B and update with results
-    private static void validateAndUpdateExcelB(String inputFilePath, String outputFilePath,
-                                                Map<String, List<Map<String, String>>> rules) throws IOException {
+    static int validateAndUpdateExcelB(String inputFilePath, String outputFilePath,
+                                       RuleBook rules) throws IOException {
+        return validateAndUpdateExcelB(inputFilePath, outputFilePath, rules, null, null);
+    }
+
+    // Same, recording run metrics and reusing stored results when those are not null; returns the rows validated
+    static int validateAndUpdateExcelB(String inputFilePath, String outputFilePath, RuleBook rules,
+                                       ValidationMetrics metrics, ResultStore store) throws IOException {
+        long openStart = System.nanoTime();
         try (FileInputStream fis = new FileInputStream(inputFilePath);
              Workbook inputWorkbook = new XSSFWorkbook(fis);
-             Workbook outputWorkbook = new XSSFWorkbook()) {
+             SXSSFWorkbook outputWorkbook = newOutputWorkbook();
+             Closeable tempFiles = outputWorkbook::dispose) { // Deleted even when validation fails
+            if (metrics != null) metrics.readNanos.add(System.nanoTime() - openStart);
 
             Sheet inputSheet = inputWorkbook.getSheetAt(0);
             Sheet outputSheet = outputWorkbook.createSheet("Validation Results");
+            writeRuleBookVersion(outputWorkbook, rules);
 
-            // Copy header row to the output file and add "Validation Result" column
+            // Copy header row to the output file and add "Validation Result" and "Mismatched Columns" columns
             Row inputHeaderRow = inputSheet.getRow(0);
             Row outputHeaderRow = outputSheet.createRow(0);
             for (int i = 0; i < inputHeaderRow.getLastCellNum(); i++) {
@@ -74,80 +454,707 @@ public class ExcelValidator {
                 }
             }
             outputHeaderRow.createCell(inputHeaderRow.getLastCellNum()).setCellValue("Validation Result");
+            outputHeaderRow.createCell(inputHeaderRow.getLastCellNum() + 1).setCellValue("Mismatched Columns");
+            if (COMPACT_REPORT) outputHeaderRow.createCell(inputHeaderRow.getLastCellNum() + 2).setCellValue("Rule Id");
+
+            // Resolve rule-book columns against the Excel B header once
+            ColumnSchema schema = new ColumnSchema(inputHeaderRow, rules.columnNames);
+            if (rules.routingColumn != null) schema.routingIndex = findColumnIndex(inputHeaderRow, rules.routingColumn);
+            schema.rangeColumns = rules.rangeColumns();
+
+            // Process each row; cells are read here, results come back in input order
+            ResultSheetWriter writer = new ResultSheetWriter(outputSheet, schema, inputHeaderRow.getLastCellNum(), metrics, store);
+            try (OrderedValidator<Row> validator = new OrderedValidator<>(VALIDATION_THREADS, writer::write, metrics, rules.resultCache)) {
+                for (int i = 1; i <= inputSheet.getLastRowNum(); i++) {
+                    Row inputRow = inputSheet.getRow(i);
+                    if (inputRow == null) continue;
+
+                    long readStart = metrics != null ? System.nanoTime() : 0L;
+                    String billingCode = getCellValue(inputRow.getCell(schema.billingCodeIndex));
+                    RuleBook ruleBook = schema.routingIndex >= 0
+                            ? rules.route(getCellValue(inputRow.getCell(schema.routingIndex))) : rules;
+                    RuleIndex index = ruleBook.indexes.getOrDefault(billingCode, RuleIndex.EMPTY);
+                    String[] actualValues = schema.readValues(inputRow);
+                    if (metrics != null) metrics.readNanos.add(System.nanoTime() - readStart);
+
+                    // Validate row, unless its result is stored from an earlier run, and add to output
+                    ValidationResult storedResult = store != null ? store.lookup(billingCode, actualValues, index) : null;
+                    validator.submit(inputRow, actualValues, index, storedResult);
+                    if (ruleBook.adaptiveOrder != null) ruleBook.adaptiveOrder.rowSubmitted(ruleBook);
+                }
+                validator.finish();
+            }
+            if (writer.compactReport != null) writer.compactReport.writeRules(outputWorkbook, rules.columnNames);
+
+            saveOutput(outputWorkbook, outputFilePath, metrics);
+            return writer.rows;
+        }
+    }
+
+    // Save the updated Excel file
+    private static void saveOutput(SXSSFWorkbook outputWorkbook, String outputFilePath,
+                                   ValidationMetrics metrics) throws IOException {
+        long writeStart = System.nanoTime();
+        try (FileOutputStream fos = new FileOutputStream(outputFilePath)) {
+            outputWorkbook.write(fos);
+        }
+        if (metrics != null) metrics.writeNanos.add(System.nanoTime() - writeStart);
+    }
+
+    // Validate Excel B read with the XSSF event model, so heap use does not grow with the input row count
+    static int validateAndUpdateExcelBStreaming(String inputFilePath, String outputFilePath,
+                                                RuleBook rules) throws IOException {
+        return validateAndUpdateExcelBStreaming(inputFilePath, outputFilePath, rules, null, null);
+    }
+
+    // Same, recording run metrics and reusing stored results when those are not null; returns the rows validated
+    static int validateAndUpdateExcelBStreaming(String inputFilePath, String outputFilePath, RuleBook rules,
+                                                ValidationMetrics metrics, ResultStore store) throws IOException {
+        try (OPCPackage inputPackage = OPCPackage.open(inputFilePath, PackageAccess.READ);
+             SXSSFWorkbook outputWorkbook = newOutputWorkbook();
+             Closeable tempFiles = outputWorkbook::dispose) { // Deleted even when validation fails
+
+            Sheet outputSheet = outputWorkbook.createSheet("Validation Results");
+            writeRuleBookVersion(outputWorkbook, rules);
+            int rows;
+            try (StreamingRowValidator rowValidator = new StreamingRowValidator(rules, outputSheet, metrics, store)) {
+                // Parsing is interleaved with the row callbacks; time outside them counts as reading
+                long parseStart = System.nanoTime();
+                readFirstSheet(inputPackage, rowValidator);
+                if (metrics != null) metrics.readNanos.add(System.nanoTime() - parseStart - rowValidator.callbackNanos);
+                rowValidator.finish();
+                rows = rowValidator.writer != null ? rowValidator.writer.rows : 0; // No writer without a header row
+                if (rowValidator.writer != null && rowValidator.writer.compactReport != null) {
+                    rowValidator.writer.compactReport.writeRules(outputWorkbook, rules.columnNames);
+                }
+            }
+
+            saveOutput(outputWorkbook, outputFilePath, metrics);
+            return rows;
+        } catch (OpenXML4JException | SAXException | ParserConfigurationException e) {
+            throw new IOException("Could not stream " + inputFilePath, e);
+        }
+    }
+
+    // Parse the first worksheet, resolving shared strings from a read-only table
+    private static void readFirstSheet(OPCPackage inputPackage, SheetRowReader.RowHandler handler)
+            throws IOException, OpenXML4JException, SAXException, ParserConfigurationException {
+        XSSFReader reader = new XSSFReader(inputPackage);
+        ReadOnlySharedStringsTable sharedStrings = new ReadOnlySharedStringsTable(inputPackage);
+
+        XMLReader parser = XMLHelper.newXMLReader();
+        parser.setContentHandler(new SheetRowReader(sharedStrings, handler));
+        try (InputStream sheetData = reader.getSheetsData().next()) {
+            parser.parse(new InputSource(sheetData));
+        }
+    }
+
+    // Validates streamed Excel B rows and writes them in the same layout as validateAndUpdateExcelB
+    private static class StreamingRowValidator implements SheetRowReader.RowHandler, Closeable {
+        RuleBook rules;
+        Sheet outputSheet;
+        ColumnSchema schema;
+        ResultSheetWriter writer;
+        OrderedValidator<Object[]> validator;
+        ValidationMetrics metrics;
+        ResultStore store;
+        long callbackNanos;
+
+        StreamingRowValidator(RuleBook rules, Sheet outputSheet, ValidationMetrics metrics, ResultStore store) {
+            this.rules = rules;
+            this.outputSheet = outputSheet;
+            this.metrics = metrics;
+            this.store = store;
+            this.validator = new OrderedValidator<>(VALIDATION_THREADS, (cells, result) -> writer.write(cells, result),
+                    metrics, rules.resultCache);
+        }
+
+        @Override
+        public void row(int rowNum, Object[] cells) {
+            if (rowNum == 0) {
+                writeHeader(cells);
+                return;
+            }
+            if (schema == null) {
+                throw new IllegalArgumentException("Header row not found");
+            }
+
+            long readStart = metrics != null ? System.nanoTime() : 0L;
+            String billingCode = getCellValue(cells, schema.billingCodeIndex);
+            RuleBook ruleBook = schema.routingIndex >= 0 ? rules.route(getCellValue(cells, schema.routingIndex)) : rules;
+            RuleIndex index = ruleBook.indexes.getOrDefault(billingCode, RuleIndex.EMPTY);
+            String[] actualValues = schema.readValues(cells);
+            if (metrics != null) metrics.readNanos.add(System.nanoTime() - readStart);
+
+            // Validate row, unless its result is stored from an earlier run, and add to output
+            ValidationResult storedResult = store != null ? store.lookup(billingCode, actualValues, index) : null;
+            validator.submit(cells, actualValues, index, storedResult);
+            if (ruleBook.adaptiveOrder != null) ruleBook.adaptiveOrder.rowSubmitted(ruleBook);
+            if (metrics != null) callbackNanos += System.nanoTime() - readStart;
+        }
+
+        // Write the results of rows still being validated
+        void finish() {
+            validator.finish();
+        }
+
+        @Override
+        public void close() {
+            validator.close();
+        }
+
+        // Copy header row to the output file and add "Validation Result" and "Mismatched Columns" columns
+        private void writeHeader(Object[] cells) {
+            String[] headerNames = new String[cells.length];
+            Row outputHeaderRow = outputSheet.createRow(0);
+            for (int i = 0; i < cells.length; i++) {
+                Cell outputCell = outputHeaderRow.createCell(i);
+                if (cells[i] != null) {
+                    headerNames[i] = String.valueOf(cells[i]);
+                    outputCell.setCellValue(headerNames[i]);
+                }
+            }
+            outputHeaderRow.createCell(cells.length).setCellValue("Validation Result");
+            outputHeaderRow.createCell(cells.length + 1).setCellValue("Mismatched Columns");
+            if (COMPACT_REPORT) outputHeaderRow.createCell(cells.length + 2).setCellValue("Rule Id");
 
-            // Process each row
-            int outputRowIndex = 1;
-            for (int i = 1; i <= inputSheet.getLastRowNum(); i++) {
-                Row inputRow = inputSheet.getRow(i);
-                if (inputRow == null) continue;
+            schema = new ColumnSchema(headerNames, rules.columnNames);
+            if (rules.routingColumn != null) schema.routingIndex = findColumnIndex(headerNames, rules.routingColumn);
+            schema.rangeColumns = rules.rangeColumns();
+            writer = new ResultSheetWriter(outputSheet, schema, cells.length, metrics, store);
+        }
+    }
 
-                String billingCode = getCellValue(inputRow.getCell(findColumnIndex(inputHeaderRow, "BIILING_CODE")));
-                List<Map<String, String>> ruleSets = rules.getOrDefault(billingCode, new ArrayList<>());
+    // Writes each input row with its result, followed by the matched rule row or in a compact report its id
+    private static class ResultSheetWriter {
+        Sheet outputSheet;
+        ColumnSchema schema;
+        int resultColIndex;
+        int outputRowIndex = 1;
+        int rows;  // Input rows validated, including Correct rows a compact report leaves out
+        ValidationMetrics metrics;
+        ResultStore store;
+        CompactReport compactReport = COMPACT_REPORT ? new CompactReport(CORRECT_SAMPLE_RATE) : null;
 
-                // Validate row and add to output
-                ValidationResult result = validateRowAgainstRules(inputRow, inputHeaderRow, ruleSets);
+        ResultSheetWriter(Sheet outputSheet, ColumnSchema schema, int resultColIndex,
+                          ValidationMetrics metrics, ResultStore store) {
+            this.outputSheet = outputSheet;
+            this.schema = schema;
+            this.resultColIndex = resultColIndex;
+            this.metrics = metrics;
+            this.store = store;
+        }
 
+        void write(Row inputRow, ValidationResult result) {
+            long writeStart = metrics != null ? System.nanoTime() : 0L;
+            if (record(result)) {
                 // Add the original input row to the output file with validation result
                 Row outputRow = outputSheet.createRow(outputRowIndex++);
                 copyRow(inputRow, outputRow);
-                outputRow.createCell(inputHeaderRow.getLastCellNum()).setCellValue(result.isValid ? "Correct" : "Wrong");
+                writeResult(outputRow, result);
+            }
+            if (metrics != null) metrics.writeNanos.add(System.nanoTime() - writeStart);
+        }
+
+        void write(Object[] cells, ValidationResult result) {
+            long writeStart = metrics != null ? System.nanoTime() : 0L;
+            if (record(result)) {
+                Row outputRow = outputSheet.createRow(outputRowIndex++);
+                copyCells(cells, outputRow);
+                writeResult(outputRow, result);
+            }
+            if (metrics != null) metrics.writeNanos.add(System.nanoTime() - writeStart);
+        }
+
+        // Count and store every result; false for a Correct row left out of a sampled report
+        private boolean record(ValidationResult result) {
+            rows++;
+            if (store != null) store.record(result); // Results arrive in input order, matching lookup()
+            return compactReport == null || compactReport.includes(result);
+        }
 
-                // Add the matched rule row if available
+        private void writeResult(Row outputRow, ValidationResult result) {
+            outputRow.createCell(resultColIndex).setCellValue(result.isValid ? "Correct" : "Wrong");
+            if (result.mismatchedColumns != null) {
+                outputRow.createCell(resultColIndex + 1).setCellValue(columnNames(result.mismatchedColumns));
+            }
+            if (compactReport != null) {
                 if (result.matchedRuleRow != null) {
-                    Row ruleRow = outputSheet.createRow(outputRowIndex++);
-                    populateRuleRow(ruleRow, inputHeaderRow, result.matchedRuleRow);
-                    ruleRow.createCell(inputHeaderRow.getLastCellNum()).setCellValue(result.isValid ? "Correct" : "Wrong");
+                    outputRow.createCell(resultColIndex + 2).setCellValue(compactReport.ruleId(result.matchedRuleRow));
+                }
+                return;
+            }
+
+            // Add the matched rule row, or for a Wrong row the nearest one, if available
+            if (result.matchedRuleRow != null) {
+                Row ruleRow = outputSheet.createRow(outputRowIndex++);
+                populateRuleRow(ruleRow, schema, result.matchedRuleRow);
+                ruleRow.createCell(resultColIndex).setCellValue(result.isValid ? "Correct" : "Wrong");
+            }
+        }
+
+        // Rule-book column names, e.g. "CURRENCY, FINAL MOP"
+        private String columnNames(int[] columns) {
+            StringBuilder names = new StringBuilder();
+            for (int c : columns) {
+                if (names.length() > 0) names.append(", ");
+                names.append(schema.columnNames[c]);
+            }
+            return names.toString();
+        }
+    }
+
+    // Matched rule rows of a compact report, numbered from 1 in the order rows first match them, and the
+    // sampling of Correct rows. Used on the writing thread only.
+    private static class CompactReport {
+        final int correctSampleRate;
+        final Map<RuleSet, Integer> ruleIds = new IdentityHashMap<>();
+        final List<RuleSet> rules = new ArrayList<>(); // By rule id - 1
+        long correctRows;
+        long writtenCorrectRows;
+
+        CompactReport(int correctSampleRate) {
+            this.correctSampleRate = Math.max(correctSampleRate, 1);
+        }
+
+        // Wrong rows are always written, Correct ones the first of every correctSampleRate
+        boolean includes(ValidationResult result) {
+            if (!result.isValid) return true;
+            if (correctRows++ % correctSampleRate != 0) return false;
+            writtenCorrectRows++;
+            return true;
+        }
+
+        int ruleId(RuleSet ruleSet) {
+            Integer ruleId = ruleIds.get(ruleSet);
+            if (ruleId == null) {
+                rules.add(ruleSet);
+                ruleId = rules.size();
+                ruleIds.put(ruleSet, ruleId);
+            }
+            return ruleId;
+        }
+
+        // "Rules" sheet: each referenced rule row once under its id, then how many Correct rows were written
+        void writeRules(Workbook outputWorkbook, String[] columnNames) {
+            Sheet sheet = outputWorkbook.createSheet("Rules");
+            Row headerRow = sheet.createRow(0);
+            headerRow.createCell(0).setCellValue("Rule Id");
+            for (int c = 0; c < columnNames.length; c++) {
+                headerRow.createCell(c + 1).setCellValue(columnNames[c]);
+            }
+            for (int r = 0; r < rules.size(); r++) {
+                Row ruleRow = sheet.createRow(r + 1);
+                ruleRow.createCell(0).setCellValue(r + 1);
+                String[] values = rules.get(r).values;
+                for (int c = 0; c < values.length; c++) {
+                    ruleRow.createCell(c + 1).setCellValue(values[c]);
+                }
+            }
+            if (correctSampleRate > 1) {
+                Row sampleRow = sheet.createRow(rules.size() + 2);
+                sampleRow.createCell(0).setCellValue("Correct rows written " + writtenCorrectRows + " of " + correctRows);
+            }
+        }
+    }
+
+    // Validates rows in chunks on a worker pool and hands the results to the writer in input order.
+    // Rule sets are read-only once loaded, so workers share them; with one thread rows are validated inline.
+    private static class OrderedValidator<T> implements Closeable {
+        interface ResultWriter<T> {
+            void write(T row, ValidationResult result);
+        }
+
+        private final ResultWriter<T> writer;
+        private final ValidationMetrics metrics;
+        private final ResultCache cache;
+        private final ExecutorService pool;
+        private final int maxPendingChunks;
+        private final Deque<List<T>> pendingRows = new ArrayDeque<>();
+        private final Deque<Future<ValidationResult[]>> pendingResults = new ArrayDeque<>();
+        private List<T> rows = new ArrayList<>();
+        private List<String[]> values = new ArrayList<>();
+        private List<RuleIndex> indexes = new ArrayList<>();
+        private List<ValidationResult> storedResults = new ArrayList<>();
+        // Result-cache use of this run alone; batch runs validate other files against the same cache meanwhile
+        private final LongAdder cacheLookups = new LongAdder();
+        private final LongAdder cacheHits = new LongAdder();
+
+        OrderedValidator(int threads, ResultWriter<T> writer, ValidationMetrics metrics, ResultCache cache) {
+            this.writer = writer;
+            this.metrics = metrics;
+            this.cache = cache;
+            this.pool = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+            this.maxPendingChunks = threads * 2; // Bounds the rows held while workers are busy
+        }
+
+        // A stored result from an earlier run, when not null, is written without validating the row again
+        void submit(T row, String[] actualValues, RuleIndex index, ValidationResult storedResult) {
+            if (pool == null) {
+                long validateStart = metrics != null ? System.nanoTime() : 0L;
+                ValidationResult result = validate(actualValues, index, storedResult);
+                if (metrics != null) metrics.validateNanos.add(System.nanoTime() - validateStart);
+                writer.write(row, result);
+                return;
+            }
+            rows.add(row);
+            values.add(actualValues);
+            indexes.add(index);
+            storedResults.add(storedResult);
+            if (rows.size() >= VALIDATION_CHUNK_SIZE) {
+                submitChunk();
+            }
+        }
+
+        // Validate the rows still buffered and write every outstanding result
+        void finish() {
+            if (!rows.isEmpty()) {
+                submitChunk();
+            }
+            while (!pendingResults.isEmpty()) {
+                writeOldestChunk();
+            }
+            if (cache != null) {
+                System.out.println(cache.report(cacheLookups.sum(), cacheHits.sum()));
+            }
+        }
+
+        private void submitChunk() {
+            List<String[]> chunkValues = values;
+            List<RuleIndex> chunkIndexes = indexes;
+            List<ValidationResult> chunkStoredResults = storedResults;
+            pendingRows.add(rows);
+            pendingResults.add(pool.submit(() -> {
+                long validateStart = metrics != null ? System.nanoTime() : 0L;
+                ValidationResult[] results = new ValidationResult[chunkValues.size()];
+                for (int i = 0; i < results.length; i++) {
+                    results[i] = validate(chunkValues.get(i), chunkIndexes.get(i), chunkStoredResults.get(i));
                 }
+                if (metrics != null) metrics.validateNanos.add(System.nanoTime() - validateStart);
+                return results;
+            }));
+            rows = new ArrayList<>();
+            values = new ArrayList<>();
+            indexes = new ArrayList<>();
+            storedResults = new ArrayList<>();
+
+            if (pendingResults.size() >= maxPendingChunks) {
+                writeOldestChunk();
+            }
+        }
+
+        private ValidationResult validate(String[] actualValues, RuleIndex index, ValidationResult storedResult) {
+            // Repeated rows are what makes a rule set hot, so stored and cached results count for the adaptive order too
+            if (storedResult != null) {
+                if (metrics != null) metrics.storedResult(storedResult);
+                if (ADAPTIVE_ORDER && storedResult.isValid) storedResult.matchedRuleRow.hits.increment();
+                return storedResult;
+            }
+            if (cache == null) {
+                return validateRowAgainstRules(actualValues, index, metrics);
             }
 
-            // Save the updated Excel file
-            try (FileOutputStream fos = new FileOutputStream(outputFilePath)) {
-                outputWorkbook.write(fos);
+            // Rows repeating the rule-column values of an earlier row get its result
+            int hash = ResultCache.hash(actualValues, index);
+            ValidationResult cachedResult = cache.get(actualValues, index, hash);
+            cacheLookups.increment();
+            if (cachedResult != null) {
+                cacheHits.increment();
+                if (metrics != null) metrics.storedResult(cachedResult);
+                if (ADAPTIVE_ORDER && cachedResult.isValid) cachedResult.matchedRuleRow.hits.increment();
+                return cachedResult;
             }
+            ValidationResult result = validateRowAgainstRules(actualValues, index, metrics);
+            cache.put(actualValues, index, hash, result);
+            return result;
+        }
+
+        private void writeOldestChunk() {
+            List<T> chunkRows = pendingRows.poll();
+            ValidationResult[] results;
+            try {
+                results = pendingResults.poll().get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while validating rows", e);
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Row validation failed", e.getCause());
+            }
+            for (int i = 0; i < results.length; i++) {
+                writer.write(chunkRows.get(i), results[i]);
+            }
+        }
+
+        @Override
+        public void close() {
+            if (pool != null) {
+                pool.shutdownNow();
+            }
+        }
+    }
+
+    // Record which rule book the results were produced with, on its own sheet after the results
+    private static void writeRuleBookVersion(Workbook outputWorkbook, RuleBook rules) {
+        Sheet sheet = outputWorkbook.createSheet("Rule Book");
+        Row versionRow = sheet.createRow(0);
+        versionRow.createCell(0).setCellValue("Rule Book Version");
+        versionRow.createCell(1).setCellValue(rules.version != null ? rules.version : "");
+        if (rules.routingColumn == null) return;
+
+        // Routed runs also list the version of each route's rule book
+        List<Map.Entry<String, RuleBook>> routes = new ArrayList<>(rules.routes.entrySet());
+        if (rules.defaultRoute != null) routes.add(new AbstractMap.SimpleEntry<>("*", rules.defaultRoute));
+        for (int r = 0; r < routes.size(); r++) {
+            Row routeRow = sheet.createRow(r + 1);
+            routeRow.createCell(0).setCellValue(rules.routingColumn + " " + routes.get(r).getKey());
+            routeRow.createCell(1).setCellValue(routes.get(r).getValue().version);
         }
     }
 
+    // Streaming output workbook, so memory use stays flat regardless of output size. Callers dispose it once done
+    // with it, which deletes the temp files behind flushed rows
+    private static SXSSFWorkbook newOutputWorkbook() {
+        return new SXSSFWorkbook(null, OUTPUT_ROW_WINDOW, COMPRESS_TEMP_FILES);
+    }
+
     // Validation result structure
-    private static class ValidationResult {
+    static class ValidationResult {
         boolean isValid;
-        Map<String, String> matchedRuleRow;
+        RuleSet matchedRuleRow;    // For a Wrong row, the rule set with the fewest failing columns
+        int[] mismatchedColumns;   // For a Wrong row, the rule-book columns failing matchedRuleRow
 
-        ValidationResult(boolean isValid, Map<String, String> matchedRuleRow) {
+        ValidationResult(boolean isValid, RuleSet matchedRuleRow) {
             this.isValid = isValid;
             this.matchedRuleRow = matchedRuleRow;
         }
+
+        ValidationResult(RuleSet nearestRuleRow, String[] actualValues) {
+            this(nearestRuleRow, mismatchedColumns(nearestRuleRow, actualValues));
+        }
+
+        ValidationResult(RuleSet nearestRuleRow, int[] mismatchedColumns) {
+            this(false, nearestRuleRow);
+            this.mismatchedColumns = mismatchedColumns;
+        }
     }
 
-    // Validate a single row against multiple rule sets
-    private static ValidationResult validateRowAgainstRules(Row row, Row headerRow, List<Map<String, String>> ruleSets) {
-        for (Map<String, String> ruleSet : ruleSets) {
-            boolean isMatch = true;
-
-            for (Map.Entry<String, String> rule : ruleSet.entrySet()) {
-                String columnName = rule.getKey();
-                String expectedValue = rule.getValue();
-                int colIndex = findColumnIndex(headerRow, columnName);
-                String actualValue = getCellValue(row.getCell(colIndex));
-
-                if (!validateCellValue(expectedValue, actualValue)) {
-                    isMatch = false;
-                    break;
+    // Counters for one validation run. LongAdder stripes updates across cells, so worker threads
+    // counting the same hot rule set do not contend; arrays are sized from the rule book up front.
+    static class ValidationMetrics {
+        final RuleBook rules;
+        final LongAdder rows = new LongAdder();
+        final LongAdder readNanos = new LongAdder();
+        final LongAdder validateNanos = new LongAdder(); // Summed over worker threads
+        final LongAdder writeNanos = new LongAdder();
+        final LongAdder[] ruleSetMatches;      // By RuleSet.id
+        final LongAdder[] columnMismatches;    // By billingCodeId * column count + column
+        long totalNanos;
+
+        ValidationMetrics(RuleBook rules) {
+            this.rules = rules;
+            ruleSetMatches = newAdders(rules.allRuleSets.size());
+            columnMismatches = newAdders(rules.billingCodes.size() * rules.columnNames.length);
+        }
+
+        private static LongAdder[] newAdders(int count) {
+            LongAdder[] adders = new LongAdder[count];
+            for (int i = 0; i < count; i++) {
+                adders[i] = new LongAdder();
+            }
+            return adders;
+        }
+
+        void ruleSetMatch(RuleSet ruleSet) {
+            ruleSetMatches[ruleSet.id].increment();
+        }
+
+        // A result reused from an earlier run or the result cache; its failing columns are not counted again
+        void storedResult(ValidationResult result) {
+            rows.increment();
+            if (result.isValid) ruleSetMatch(result.matchedRuleRow);
+        }
+
+        // The first column, in the rule set's check order, that rejected it; later failing columns are not counted
+        void columnMismatch(RuleSet ruleSet, int column) {
+            columnMismatches[ruleSet.billingCodeId * rules.columnNames.length + column].increment();
+        }
+
+        void write(Path file, String inputFilePath) throws IOException {
+            long rowCount = rows.sum();
+            long correctRows = 0;
+            for (LongAdder matches : ruleSetMatches) {
+                correctRows += matches.sum();
+            }
+
+            StringBuilder json = new StringBuilder();
+            json.append("{\n");
+            json.append("  \"input\": ").append(jsonString(inputFilePath)).append(",\n");
+            json.append("  \"ruleBookVersion\": ").append(jsonString(rules.version)).append(",\n");
+            json.append("  \"rows\": ").append(rowCount).append(",\n");
+            json.append("  \"correctRows\": ").append(correctRows).append(",\n");
+            json.append("  \"wrongRows\": ").append(rowCount - correctRows).append(",\n");
+            json.append("  \"rowsPerSecond\": ")
+                    .append(totalNanos > 0 ? Math.round(rowCount * 1e9 / totalNanos) : 0).append(",\n");
+            json.append("  \"phaseMillis\": {\"loadRules\": ").append(rules.loadNanos / 1_000_000)
+                    .append(", \"read\": ").append(readNanos.sum() / 1_000_000)
+                    .append(", \"validate\": ").append(validateNanos.sum() / 1_000_000)
+                    .append(", \"write\": ").append(writeNanos.sum() / 1_000_000)
+                    .append(", \"total\": ").append(totalNanos / 1_000_000).append("},\n");
+
+            // Only rule sets and columns that were hit, so the summary stays small for large rule books
+            json.append("  \"ruleSetMatches\": [");
+            String separator = "\n";
+            for (RuleSet ruleSet : rules.allRuleSets) {
+                long matches = ruleSetMatches[ruleSet.id].sum();
+                if (matches == 0) continue;
+                json.append(separator).append("    {\"billingCode\": ")
+                        .append(jsonString(rules.billingCodes.get(ruleSet.billingCodeId)))
+                        .append(", \"ruleSet\": ").append(ruleSet.position)
+                        .append(", \"matches\": ").append(matches).append("}");
+                separator = ",\n";
+            }
+            json.append("\n  ],\n");
+
+            json.append("  \"columnMismatches\": [");
+            separator = "\n";
+            int columnCount = rules.columnNames.length;
+            for (int b = 0; b < rules.billingCodes.size(); b++) {
+                for (int c = 0; c < columnCount; c++) {
+                    long mismatches = columnMismatches[b * columnCount + c].sum();
+                    if (mismatches == 0) continue;
+                    json.append(separator).append("    {\"billingCode\": ").append(jsonString(rules.billingCodes.get(b)))
+                            .append(", \"column\": ").append(jsonString(rules.columnNames[c]))
+                            .append(", \"mismatches\": ").append(mismatches).append("}");
+                    separator = ",\n";
+                }
+            }
+            json.append("\n  ]\n}\n");
+
+            Files.write(file, json.toString().getBytes(StandardCharsets.UTF_8));
+        }
+
+        private static String jsonString(String value) {
+            if (value == null) return "null";
+            StringBuilder quoted = new StringBuilder(value.length() + 2).append('"');
+            for (int i = 0; i < value.length(); i++) {
+                char ch = value.charAt(i);
+                if (ch == '"' || ch == '\\') {
+                    quoted.append('\\').append(ch);
+                } else if (ch < 0x20) {
+                    quoted.append(String.format("\\u%04x", (int) ch));
+                } else {
+                    quoted.append(ch);
                 }
             }
+            return quoted.append('"').toString();
+        }
+    }
+
+    // Validate a single row against multiple rule sets
+    static ValidationResult validateRowAgainstRules(String[] actualValues, RuleIndex index) {
+        return validateRowAgainstRules(actualValues, index, null);
+    }
+
+    // Same, counting matched rule sets and failing columns when metrics is not null
+    static ValidationResult validateRowAgainstRules(String[] actualValues, RuleIndex index,
+                                                    ValidationMetrics metrics) {
+        if (metrics != null) metrics.rows.increment();
+
+        // Only rule sets that can match the row's exact-value columns are tried, still in rule-book order.
+        // Failing columns are counted as well, but only until a set is no better than the nearest one so far.
+        RuleIndex leaf = index.leaf(actualValues);
+        List<RuleSet> candidates = leaf.ruleSets;
+
+        // A generated matcher finds the first match directly; metrics count failing columns, which it does not see.
+        // When it finds none, no candidate matches and only the search for the nearest one is left.
+        boolean noMatch = false;
+        if (leaf.matcher != null && metrics == null) {
+            RuleSet match = leaf.matcher.firstMatch(candidates, actualValues);
+            if (match != null) {
+                if (ADAPTIVE_ORDER) match.hits.increment();
+                return new ValidationResult(true, match);
+            }
+            noMatch = true;
+        }
 
-            if (isMatch) {
+        // In adaptive mode candidates are tried hottest first, so ties for nearest go to the earliest by position.
+        // A set only becomes the nearest when it was counted to its last column, so the failing columns recorded
+        // while counting it are complete.
+        List<RuleSet> matchOrder = leaf.matchOrder;
+        RuleSet nearest = null;
+        int fewestMismatches = Integer.MAX_VALUE;
+        int[] failing = new int[actualValues.length];
+        int[] nearestFailing = null;
+        for (RuleSet ruleSet : matchOrder != null && !noMatch ? matchOrder : candidates) {
+            boolean earlier = nearest == null || ruleSet.position < nearest.position;
+            int limit = earlier && fewestMismatches < Integer.MAX_VALUE ? fewestMismatches + 1 : fewestMismatches;
+            int mismatches = countMismatches(ruleSet, actualValues, limit, metrics, failing);
+            if (mismatches == 0 && !noMatch) {
+                if (metrics != null) metrics.ruleSetMatch(ruleSet);
+                if (ADAPTIVE_ORDER) ruleSet.hits.increment();
                 return new ValidationResult(true, ruleSet);
             }
+            if (mismatches < fewestMismatches || (mismatches == fewestMismatches && earlier)) {
+                nearest = ruleSet;
+                fewestMismatches = mismatches;
+                nearestFailing = Arrays.copyOf(failing, mismatches);
+            }
+        }
+
+        // No rule set matches: on request the sets the index ruled out may still be nearer, earliest first on ties
+        if (NEAREST_IN_BILLING_CODE) {
+            int next = 0;
+            for (RuleSet ruleSet : index.ruleSets) {
+                if (next < candidates.size() && candidates.get(next) == ruleSet) {
+                    next++;
+                    continue;
+                }
+                boolean earlier = nearest == null || ruleSet.position < nearest.position;
+                int limit = earlier && fewestMismatches < Integer.MAX_VALUE ? fewestMismatches + 1 : fewestMismatches;
+                int mismatches = countMismatches(ruleSet, actualValues, limit, null, failing);
+                if (mismatches < fewestMismatches || (mismatches == fewestMismatches && earlier)) {
+                    nearest = ruleSet;
+                    fewestMismatches = mismatches;
+                    nearestFailing = Arrays.copyOf(failing, mismatches);
+                }
+            }
         }
 
-        // If no rule matches, include the last rule set
-        if (!ruleSets.isEmpty()) {
-            return new ValidationResult(false, ruleSets.get(ruleSets.size() - 1));
+        if (nearest != null) {
+            Arrays.sort(nearestFailing); // Recorded in check order, reported in rule-book order
+            return new ValidationResult(nearest, nearestFailing);
         }
 
         return new ValidationResult(false, null);
     }
 
+    // Failing columns of the rule set, counted up to limit and recorded in failing when that is not null;
+    // most selective columns are checked first
+    private static int countMismatches(RuleSet ruleSet, String[] actualValues, int limit, ValidationMetrics metrics,
+                                       int[] failing) {
+        int mismatches = 0;
+        for (int i = 0; i < ruleSet.checkOrder.length && mismatches < limit; i++) {
+            int c = ruleSet.checkOrder[i];
+            if (!validateCellValue(ruleSet.rules[c], actualValues[c])) {
+                if (mismatches == 0 && metrics != null) metrics.columnMismatch(ruleSet, c);
+                if (failing != null) failing[mismatches] = c;
+                mismatches++;
+            }
+        }
+        return mismatches;
+    }
+
+    private static int[] mismatchedColumns(RuleSet ruleSet, String[] actualValues) {
+        int[] columns = new int[ruleSet.rules.length];
+        int count = 0;
+        for (int c = 0; c < ruleSet.rules.length; c++) {
+            if (!validateCellValue(ruleSet.rules[c], actualValues[c])) {
+                columns[count++] = c;
+            }
+        }
+        return Arrays.copyOf(columns, count);
+    }
+
     // Copy row from input to output
     private static void copyRow(Row inputRow, Row outputRow) {
         for (int i = 0; i < inputRow.getLastCellNum(); i++) {
@@ -171,26 +1178,31 @@ public class ExcelValidator {
         }
     }
 
-    // Populate rule row in output
-    private static void populateRuleRow(Row ruleRow, Row headerRow, Map<String, String> ruleSet) {
-        for (Map.Entry<String, String> rule : ruleSet.entrySet()) {
-            int colIndex = findColumnIndex(headerRow, rule.getKey());
-            ruleRow.createCell(colIndex).setCellValue(rule.getValue());
+    // Copy streamed cells to output, with the same cell types as copyRow
+    private static void copyCells(Object[] cells, Row outputRow) {
+        for (int i = 0; i < cells.length; i++) {
+            Object value = cells[i];
+            Cell outputCell = outputRow.createCell(i);
+            if (value instanceof String) {
+                outputCell.setCellValue((String) value);
+            } else if (value instanceof Double) {
+                outputCell.setCellValue((Double) value);
+            } else if (value instanceof Boolean) {
+                outputCell.setCellValue((Boolean) value);
+            }
         }
     }
 
-    // Validate cell value based on rule
-    private static boolean validateCellValue(String expectedValue, String actualValue) {
-        if (expectedValue.equalsIgnoreCase("Not Used")) return true; // Any value is valid
-        if (expectedValue.startsWith("<>")) { // Exclusion rule
-            String[] excludedValues = expectedValue.substring(3, expectedValue.length() - 1).split(",");
-            return Arrays.stream(excludedValues).noneMatch(val -> val.trim().equalsIgnoreCase(actualValue));
-        }
-        if (expectedValue.contains(",")) { // Multiple values allowed
-            String[] allowedValues = expectedValue.split(",");
-            return Arrays.stream(allowedValues).anyMatch(val -> val.trim().equalsIgnoreCase(actualValue));
+    // Populate rule row in output
+    private static void populateRuleRow(Row ruleRow, ColumnSchema schema, RuleSet ruleSet) {
+        for (int c = 0; c < ruleSet.values.length; c++) {
+            ruleRow.createCell(schema.columnIndexes[c]).setCellValue(ruleSet.values[c]);
         }
-        return expectedValue.equalsIgnoreCase(actualValue); // Exact match
+    }
+
+    // Validate cell value against its compiled rule
+    static boolean validateCellValue(CellRule rule, String actualValue) {
+        return rule.matches(actualValue);
     }
 
     // Helper method to get cell value as String
@@ -203,6 +1215,39 @@ public class ExcelValidator {
         }
     }
 
+    // Helper method to get a streamed cell value as String, same conversion as for a Cell
+    private static String getCellValue(Object[] cells, int colIndex) {
+        Object value = colIndex < cells.length ? cells[colIndex] : null;
+        if (value instanceof String) return ((String) value).trim();
+        if (value instanceof Double) return String.valueOf((int) (double) (Double) value);
+        return "";
+    }
+
+    // Same as getCellValue, except that a number whose fraction or size the int text loses also carries its
+    // untruncated form after CellRule.EXACT_NUMBER, e.g. "10\u000010.7". Only RANGE rules read that part.
+    private static String getExactCellValue(Cell cell) {
+        if (cell != null && cell.getCellType() == CellType.NUMERIC) return withExactNumber(cell.getNumericCellValue());
+        return getCellValue(cell);
+    }
+
+    private static String getExactCellValue(Object[] cells, int colIndex) {
+        Object value = colIndex < cells.length ? cells[colIndex] : null;
+        if (value instanceof Double) return withExactNumber((Double) value);
+        return getCellValue(cells, colIndex);
+    }
+
+    private static String withExactNumber(double value) {
+        String text = String.valueOf((int) value);
+        String exact = formatNumber(value);
+        return exact.equals(text) ? text : text + CellRule.EXACT_NUMBER + exact;
+    }
+
+    // Whole numbers without ".0", so they read as getCellValue gives them within the int range
+    private static String formatNumber(double value) {
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) return String.valueOf((long) value);
+        return String.valueOf(value);
+    }
+
     // Find column index by column name
     private static int findColumnIndex(Row headerRow, String columnName) {
         for (Cell cell : headerRow) {
@@ -212,4 +1257,1647 @@ public class ExcelValidator {
         }
         throw new IllegalArgumentException("Column " + columnName + " not found");
     }
+
+    // Find column index by column name in a streamed header row
+    private static int findColumnIndex(String[] headerNames, String columnName) {
+        for (int i = 0; i < headerNames.length; i++) {
+            if (headerNames[i] != null && headerNames[i].equalsIgnoreCase(columnName)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Column " + columnName + " not found");
+    }
+
+    // Rule book: column names in rule-book order and rule sets per billing code
+    static class RuleBook {
+        String version; // SHA-256 of the rule-book file
+        long loadNanos;
+        String[] columnNames;
+        Map<String, List<RuleSet>> ruleSets = new HashMap<>();
+        Map<String, RuleIndex> indexes = new HashMap<>();
+        List<String> billingCodes = new ArrayList<>(); // By RuleSet.billingCodeId
+        List<RuleSet> allRuleSets = new ArrayList<>(); // By RuleSet.id
+        AdaptiveOrder adaptiveOrder; // Null unless validator.adaptiveOrder is on
+        ResultCache resultCache;     // Null unless validator.resultCacheEntries is set
+        // Routed rule books hold no rule sets of their own and send each row on by its routing-column value
+        String routingColumn;
+        Map<String, RuleBook> routes;
+        RuleBook defaultRoute;       // For values without a route, null to leave those rows unmatched
+
+        private static final RuleBook NO_RULES = new RuleBook();
+
+        // The rule book validating rows with this routing-column value
+        RuleBook route(String routingValue) {
+            RuleBook ruleBook = routes.get(routingValue);
+            if (ruleBook == null) ruleBook = defaultRoute;
+            return ruleBook != null ? ruleBook : NO_RULES;
+        }
+
+        // Columns with a RANGE rule in some rule set. Their numeric cells also carry the number without the int
+        // truncation of getCellValue, so ">10" rejects 10 but accepts 10.5, while other rules see "10" as before
+        boolean[] rangeColumns() {
+            boolean[] columns = new boolean[columnNames.length];
+            for (RuleBook ruleBook : routedRuleBooks()) {
+                for (RuleSet ruleSet : ruleBook.allRuleSets) {
+                    for (int c = 0; c < ruleSet.rules.length; c++) {
+                        columns[c] |= ruleSet.rules[c].kind == CellRule.Kind.RANGE;
+                    }
+                }
+            }
+            return columns;
+        }
+
+        // Rule books whose rule sets validate rows, each once
+        Collection<RuleBook> routedRuleBooks() {
+            if (routingColumn == null) return Collections.singletonList(this);
+            Set<RuleBook> ruleBooks = Collections.newSetFromMap(new IdentityHashMap<>());
+            ruleBooks.addAll(routes.values());
+            if (defaultRoute != null) ruleBooks.add(defaultRoute);
+            return ruleBooks;
+        }
+
+        // Index each billing code's rule sets on their exact-value columns, numbering them for metrics
+        void buildIndexes() {
+            indexes.clear();
+            billingCodes.clear();
+            allRuleSets.clear();
+            for (Map.Entry<String, List<RuleSet>> entry : ruleSets.entrySet()) {
+                List<RuleSet> codeRuleSets = entry.getValue();
+                for (int r = 0; r < codeRuleSets.size(); r++) {
+                    RuleSet ruleSet = codeRuleSets.get(r);
+                    ruleSet.id = allRuleSets.size();
+                    ruleSet.billingCodeId = billingCodes.size();
+                    ruleSet.position = r + 1;
+                    allRuleSets.add(ruleSet);
+                }
+                billingCodes.add(entry.getKey());
+                indexes.put(entry.getKey(), RuleIndex.build(codeRuleSets, new BitSet()));
+            }
+            Selectivity.orderChecks(this, null, 0);
+            if (GENERATED_MATCHERS) {
+                MatcherCompiler.compile(this);
+            }
+        }
+    }
+
+    // Finds rule sets that can never be the first match, because rule sets before them under the same billing code
+    // accept every row they accept. Dropping them leaves every Correct result and its matched rule set unchanged.
+    static class RuleAnalyzer {
+        enum Kind { DUPLICATE, SUBSUMED, SHADOWED }
+
+        static class Finding {
+            String billingCode;
+            RuleSet ruleSet;
+            Kind kind;
+            List<RuleSet> coveredBy;
+
+            Finding(String billingCode, RuleSet ruleSet, Kind kind, List<RuleSet> coveredBy) {
+                this.billingCode = billingCode;
+                this.ruleSet = ruleSet;
+                this.kind = kind;
+                this.coveredBy = coveredBy;
+            }
+
+            @Override
+            public String toString() {
+                StringBuilder positions = new StringBuilder();
+                for (RuleSet other : coveredBy) {
+                    if (positions.length() > 0) positions.append(", ");
+                    positions.append(other.position);
+                }
+                switch (kind) {
+                    case DUPLICATE:
+                        return "Billing code " + billingCode + ": rule set " + ruleSet.position + " duplicates rule set " + positions;
+                    case SUBSUMED:
+                        return "Billing code " + billingCode + ": rule set " + ruleSet.position + " is covered by rule set " + positions;
+                    default:
+                        return "Billing code " + billingCode + ": rule set " + ruleSet.position + " is covered by rule sets " + positions + " together";
+                }
+            }
+        }
+
+        static List<Finding> analyze(RuleBook rules) {
+            List<Finding> findings = new ArrayList<>();
+            for (Map.Entry<String, List<RuleSet>> entry : rules.ruleSets.entrySet()) {
+                Map<RuleSet, ValueSet[]> valueSets = new IdentityHashMap<>();
+                for (RuleSet ruleSet : entry.getValue()) {
+                    ValueSet[] columns = new ValueSet[ruleSet.rules.length];
+                    for (int c = 0; c < columns.length; c++) {
+                        columns[c] = ValueSet.of(ruleSet.rules[c]);
+                    }
+                    valueSets.put(ruleSet, columns);
+                }
+
+                List<RuleSet> reachable = new ArrayList<>();
+                for (RuleSet ruleSet : entry.getValue()) {
+                    Finding finding = coverage(entry.getKey(), ruleSet, reachable, valueSets);
+                    if (finding != null) {
+                        findings.add(finding);
+                    } else {
+                        reachable.add(ruleSet);
+                    }
+                }
+            }
+            return findings;
+        }
+
+        // Drop the rule sets found and rebuild the indexes over what is left
+        static void prune(RuleBook rules, List<Finding> findings) {
+            Set<RuleSet> unreachable = Collections.newSetFromMap(new IdentityHashMap<>());
+            for (Finding finding : findings) {
+                unreachable.add(finding.ruleSet);
+            }
+            for (List<RuleSet> ruleSets : rules.ruleSets.values()) {
+                ruleSets.removeIf(unreachable::contains);
+            }
+            rules.buildIndexes();
+        }
+
+        // Earlier rule sets only need checking while they are reachable themselves: an unreachable one is
+        // covered by reachable ones before it
+        private static Finding coverage(String billingCode, RuleSet ruleSet, List<RuleSet> earlier,
+                                        Map<RuleSet, ValueSet[]> valueSets) {
+            ValueSet[] columns = valueSets.get(ruleSet);
+            int columnCount = columns.length;
+            List<List<RuleSet>> coveringExceptColumn = new ArrayList<>();
+            for (int c = 0; c < columnCount; c++) {
+                coveringExceptColumn.add(new ArrayList<>());
+            }
+
+            for (RuleSet other : earlier) {
+                ValueSet[] otherColumns = valueSets.get(other);
+                int uncoveredColumn = -1;
+                boolean covers = true;
+                for (int c = 0; c < columnCount && covers; c++) {
+                    if (!columns[c].isSubsetOf(otherColumns[c])) {
+                        if (uncoveredColumn >= 0) {
+                            covers = false;
+                        }
+                        uncoveredColumn = c;
+                    }
+                }
+                if (!covers) continue;
+                if (uncoveredColumn < 0) {
+                    Kind kind = sameValues(columns, otherColumns) ? Kind.DUPLICATE : Kind.SUBSUMED;
+                    return new Finding(billingCode, ruleSet, kind, Collections.singletonList(other));
+                }
+                coveringExceptColumn.get(uncoveredColumn).add(other);
+            }
+
+            // Sets agreeing with this one on all columns but c may still cover it together on c
+            for (int c = 0; c < columnCount; c++) {
+                List<RuleSet> candidates = coveringExceptColumn.get(c);
+                if (candidates.size() < 2) continue;
+                ValueSet union = ValueSet.NONE;
+                for (RuleSet other : candidates) {
+                    union = union.union(valueSets.get(other)[c]);
+                }
+                if (columns[c].isSubsetOf(union)) {
+                    return new Finding(billingCode, ruleSet, Kind.SHADOWED, candidates);
+                }
+            }
+            return null;
+        }
+
+        private static boolean sameValues(ValueSet[] a, ValueSet[] b) {
+            for (int c = 0; c < a.length; c++) {
+                if (!a[c].isSubsetOf(b[c]) || !b[c].isSubsetOf(a[c])) return false;
+            }
+            return true;
+        }
+    }
+
+    // Orders each rule set's column checks by the estimated share of Excel B rows the column's rule accepts, lowest
+    // first, so a rejected rule set is usually rejected by its first check. Shares come from sampled Excel B values
+    // when there are any, otherwise from how many distinct values the rule book pins in the column.
+    private static class Selectivity {
+        static final double UNKNOWN_SHARE = 0.5; // Range, prefix and regex rules without a sample
+
+        static void orderChecks(RuleBook rules, List<Map<String, Integer>> valueCounts, int sampleRows) {
+            int columnCount = rules.columnNames.length;
+            List<Set<String>> pinnedValues = new ArrayList<>();
+            List<Map<String, Double>> shares = new ArrayList<>(); // Per column, by rule text
+            for (int c = 0; c < columnCount; c++) {
+                pinnedValues.add(new HashSet<>());
+                shares.add(new HashMap<>());
+            }
+            for (RuleSet ruleSet : rules.allRuleSets) {
+                for (int c = 0; c < columnCount; c++) {
+                    Set<String> values = ruleSet.rules[c].pinnedValues();
+                    if (values != null) pinnedValues.get(c).addAll(values);
+                }
+            }
+
+            for (RuleSet ruleSet : rules.allRuleSets) {
+                double[] share = new double[columnCount];
+                for (int c : ruleSet.checkOrder) {
+                    if (rules.columnNames[c].equalsIgnoreCase("BIILING_CODE")) {
+                        share[c] = 1.0; // Always matches: rows only meet their own billing code's rule sets
+                        continue;
+                    }
+                    Map<String, Integer> sample = valueCounts != null && sampleRows > 0 ? valueCounts.get(c) : null;
+                    int distinctValues = pinnedValues.get(c).size() + 1; // One more for values the rule book never names
+                    share[c] = shares.get(c).computeIfAbsent(ruleSet.values[c],
+                            text -> share(ruleSet.rules[c], distinctValues, sample, sampleRows));
+                }
+                ruleSet.checkOrder = sortedColumns(ruleSet.checkOrder, share);
+            }
+        }
+
+        private static double share(CellRule rule, int distinctValues, Map<String, Integer> sample, int sampleRows) {
+            if (sample != null) {
+                long accepted = 0;
+                for (Map.Entry<String, Integer> value : sample.entrySet()) {
+                    if (rule.matches(value.getKey())) accepted += value.getValue();
+                }
+                return (double) accepted / sampleRows;
+            }
+            switch (rule.kind) {
+                case EXACT: return 1.0 / distinctValues;
+                case ALLOW: return Math.min(1.0, (double) rule.values.size() / distinctValues);
+                case DENY: return Math.max(0.0, 1.0 - (double) rule.values.size() / distinctValues);
+                default: return UNKNOWN_SHARE;
+            }
+        }
+
+        // Lowest share first, ties in column order
+        private static int[] sortedColumns(int[] columns, double[] share) {
+            Integer[] sorted = new Integer[columns.length];
+            for (int i = 0; i < columns.length; i++) {
+                sorted[i] = columns[i];
+            }
+            Arrays.sort(sorted, (a, b) -> share[a] != share[b] ? Double.compare(share[a], share[b]) : Integer.compare(a, b));
+            int[] order = new int[sorted.length];
+            for (int i = 0; i < sorted.length; i++) {
+                order[i] = sorted[i];
+            }
+            return order;
+        }
+    }
+
+    // Counts of folded Excel B values per rule-book column over the first rows of a sample file
+    private static class ValueSample implements SheetRowReader.RowHandler {
+        // Ends the parse once enough rows are read
+        private static class Enough extends RuntimeException {
+            Enough() {
+                super(null, null, false, false);
+            }
+        }
+
+        final String[] columnNames;
+        final int maxRows;
+        final List<Map<String, Integer>> valueCounts = new ArrayList<>();
+        ColumnSchema schema;
+        int rows;
+
+        private ValueSample(String[] columnNames, int maxRows) {
+            this.columnNames = columnNames;
+            this.maxRows = maxRows;
+            for (int c = 0; c < columnNames.length; c++) {
+                valueCounts.add(new HashMap<>());
+            }
+        }
+
+        static ValueSample read(String filePath, String[] columnNames, int maxRows) throws IOException {
+            ValueSample sample = new ValueSample(columnNames, maxRows);
+            try (OPCPackage inputPackage = OPCPackage.open(filePath, PackageAccess.READ)) {
+                readFirstSheet(inputPackage, sample);
+            } catch (Enough e) {
+                // Sampled maxRows rows
+            } catch (OpenXML4JException | SAXException | ParserConfigurationException e) {
+                throw new IOException("Could not stream " + filePath, e);
+            }
+            return sample;
+        }
+
+        @Override
+        public void row(int rowNum, Object[] cells) {
+            if (rowNum == 0) {
+                String[] headerNames = new String[cells.length];
+                for (int i = 0; i < cells.length; i++) {
+                    if (cells[i] != null) headerNames[i] = String.valueOf(cells[i]);
+                }
+                schema = new ColumnSchema(headerNames, columnNames);
+                return;
+            }
+            if (rows >= maxRows) throw new Enough();
+
+            String[] values = schema.readValues(cells);
+            for (int c = 0; c < values.length; c++) {
+                valueCounts.get(c).merge(CellRule.fold(values[c]), 1, Integer::sum);
+            }
+            rows++;
+        }
+    }
+
+    // Orders each index leaf's candidates by first-match hits, hottest first. Two rule sets that could both match
+    // one row keep their rule-book order, so for every row the first match is the same as in rule-book order;
+    // only rule sets shown disjoint on some column trade places.
+    static class AdaptiveOrder {
+        final Path hitsFile;
+        final AtomicLong submittedRows = new AtomicLong();
+        final Map<RuleIndex, int[][]> laterOverlaps = new IdentityHashMap<>(); // Per leaf, computed once
+
+        AdaptiveOrder(Path hitsFile) {
+            this.hitsFile = hitsFile;
+        }
+
+        void rowSubmitted(RuleBook rules) {
+            if (submittedRows.incrementAndGet() % ADAPTIVE_INTERVAL == 0) {
+                reorder(rules);
+            }
+        }
+
+        synchronized void reorder(RuleBook rules) {
+            Map<RuleSet, ValueSet[]> valueSets = new IdentityHashMap<>();
+            for (RuleIndex index : rules.indexes.values()) {
+                reorder(index, valueSets);
+            }
+        }
+
+        private void reorder(RuleIndex node, Map<RuleSet, ValueSet[]> valueSets) {
+            if (node.column >= 0) {
+                for (RuleIndex branch : node.branches.values()) {
+                    reorder(branch, valueSets);
+                }
+                reorder(node.otherwise, valueSets);
+                return;
+            }
+
+            List<RuleSet> ruleSets = node.ruleSets;
+            int count = ruleSets.size();
+            long[] hits = new long[count];
+            long totalHits = 0;
+            for (int i = 0; i < count; i++) {
+                hits[i] = ruleSets.get(i).hits.sum();
+                totalHits += hits[i];
+            }
+            if (count < 2 || totalHits == 0) return;
+
+            int[][] later = laterOverlaps.get(node);
+            if (later == null) {
+                later = laterOverlaps(ruleSets, valueSets);
+                laterOverlaps.put(node, later);
+            }
+
+            // Take the hottest rule set whose overlapping earlier ones are all placed, earliest on ties
+            int[] waitingFor = new int[count];
+            for (int[] overlaps : later) {
+                for (int j : overlaps) {
+                    waitingFor[j]++;
+                }
+            }
+            PriorityQueue<Integer> ready = new PriorityQueue<>((a, b) ->
+                    hits[a] != hits[b] ? Long.compare(hits[b], hits[a]) : Integer.compare(a, b));
+            for (int i = 0; i < count; i++) {
+                if (waitingFor[i] == 0) ready.add(i);
+            }
+            List<RuleSet> order = new ArrayList<>(count);
+            boolean reordered = false;
+            while (!ready.isEmpty()) {
+                int i = ready.poll();
+                reordered |= i != order.size();
+                order.add(ruleSets.get(i));
+                for (int j : later[i]) {
+                    if (--waitingFor[j] == 0) ready.add(j);
+                }
+            }
+            node.matchOrder = reordered ? Collections.unmodifiableList(order) : null;
+        }
+
+        // For each rule set of a leaf, the later ones that may match a row it matches too
+        private static int[][] laterOverlaps(List<RuleSet> ruleSets, Map<RuleSet, ValueSet[]> valueSets) {
+            int count = ruleSets.size();
+            ValueSet[][] columns = new ValueSet[count][];
+            for (int i = 0; i < count; i++) {
+                columns[i] = valueSets.computeIfAbsent(ruleSets.get(i), AdaptiveOrder::valueSets);
+            }
+            int[][] later = new int[count][];
+            for (int i = 0; i < count; i++) {
+                int[] overlaps = new int[count - i - 1];
+                int overlapCount = 0;
+                for (int j = i + 1; j < count; j++) {
+                    if (mayOverlap(columns[i], columns[j])) overlaps[overlapCount++] = j;
+                }
+                later[i] = Arrays.copyOf(overlaps, overlapCount);
+            }
+            return later;
+        }
+
+        private static boolean mayOverlap(ValueSet[] a, ValueSet[] b) {
+            for (int c = 0; c < a.length; c++) {
+                if (a[c].isDisjointFrom(b[c])) return false;
+            }
+            return true;
+        }
+
+        private static ValueSet[] valueSets(RuleSet ruleSet) {
+            ValueSet[] columns = new ValueSet[ruleSet.rules.length];
+            for (int c = 0; c < columns.length; c++) {
+                columns[c] = ValueSet.of(ruleSet.rules[c]);
+            }
+            return columns;
+        }
+
+        // Lines of "<hits>\t<rule set key>"; counts of rule sets no longer in the rule book are dropped
+        void load(RuleBook rules) throws IOException {
+            if (!Files.exists(hitsFile)) return;
+            Map<String, Long> counts = new HashMap<>();
+            for (String line : Files.readAllLines(hitsFile, StandardCharsets.UTF_8)) {
+                int tab = line.indexOf('\t');
+                if (tab < 0) continue;
+                try {
+                    counts.merge(line.substring(tab + 1), Long.parseLong(line.substring(0, tab)), Long::sum);
+                } catch (NumberFormatException e) {
+                    // Skip a damaged line
+                }
+            }
+            for (RuleSet ruleSet : rules.allRuleSets) {
+                Long count = counts.get(key(ruleSet));
+                if (count != null) ruleSet.hits.add(count);
+            }
+        }
+
+        synchronized void save(RuleBook rules) {
+            Path tempFile = hitsFile.resolveSibling(hitsFile.getFileName() + ".tmp");
+            try {
+                try (BufferedWriter out = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8)) {
+                    for (RuleSet ruleSet : rules.allRuleSets) {
+                        long hits = ruleSet.hits.sum();
+                        if (hits == 0) continue;
+                        out.write(hits + "\t" + key(ruleSet));
+                        out.newLine();
+                    }
+                }
+                Files.move(tempFile, hitsFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                System.err.println("Could not save rule-set hits " + hitsFile + ": " + e.getMessage());
+            }
+        }
+
+        // Rule set cells, escaped and tab separated, so counts follow a rule set when rows move in the rule book
+        private static String key(RuleSet ruleSet) {
+            StringBuilder key = new StringBuilder();
+            for (String value : ruleSet.values) {
+                if (key.length() > 0) key.append('\t');
+                key.append(value.replace("\\", "\\\\").replace("\t", "\\t")
+                        .replace("\n", "\\n").replace("\r", "\\r"));
+            }
+            return key.toString();
+        }
+    }
+
+    // Folded cell values a rule accepts: a finite set, everything except a finite set, or for range, prefix
+    // and regex rules the values the rule itself accepts. Those can only be tested value by value, so checks
+    // involving them answer "not a subset" whenever that test cannot decide, which keeps the analysis safe.
+    private static class ValueSet {
+        static final ValueSet NONE = new ValueSet(false, Collections.emptySet());
+
+        final boolean complement;
+        final Set<String> values;
+        final CellRule rule; // Set for range, prefix and regex rules, which have no finite form
+
+        ValueSet(boolean complement, Set<String> values) {
+            this.complement = complement;
+            this.values = values;
+            this.rule = null;
+        }
+
+        private ValueSet(CellRule rule) {
+            this.complement = false;
+            this.values = Collections.emptySet();
+            this.rule = rule;
+        }
+
+        static ValueSet of(CellRule rule) {
+            switch (rule.kind) {
+                case ANY: return new ValueSet(true, Collections.emptySet());
+                case DENY: return new ValueSet(true, rule.values);
+                case ALLOW: return new ValueSet(false, rule.values);
+                case EXACT: return new ValueSet(false, Collections.singleton(rule.exactValue));
+                default: return new ValueSet(rule);
+            }
+        }
+
+        boolean isSubsetOf(ValueSet other) {
+            if (rule != null) {
+                // Inside everything but a finite set when the rule accepts none of that set
+                if (!other.complement) return false;
+                for (String value : other.values) {
+                    if (rule.matches(value)) return false;
+                }
+                return true;
+            }
+            if (other.rule != null) {
+                if (complement) return false;
+                for (String value : values) {
+                    if (!other.rule.matches(value)) return false;
+                }
+                return true;
+            }
+            if (!complement && !other.complement) return other.values.containsAll(values);
+            if (!complement) return Collections.disjoint(values, other.values);
+            if (!other.complement) return false;
+            return values.containsAll(other.values);
+        }
+
+        // True only when no value is in both; false whenever a rule-only set leaves that undecided
+        boolean isDisjointFrom(ValueSet other) {
+            if (rule != null || other.rule != null) {
+                ValueSet ruleOnly = rule != null ? this : other;
+                ValueSet known = rule != null ? other : this;
+                if (known.rule != null || known.complement) return false;
+                for (String value : known.values) {
+                    if (ruleOnly.rule.matches(value)) return false;
+                }
+                return true;
+            }
+            if (complement && other.complement) return false;
+            if (!complement && !other.complement) return Collections.disjoint(values, other.values);
+            ValueSet excluded = complement ? this : other;
+            ValueSet included = complement ? other : this;
+            return excluded.values.containsAll(included.values);
+        }
+
+        // May return less than the true union when a side is a rule-only set, never more
+        ValueSet union(ValueSet other) {
+            if (rule != null) return other.rule != null || (!other.complement && other.values.isEmpty()) ? this : other;
+            if (other.rule != null) return this;
+            Set<String> result = new HashSet<>();
+            if (!complement && !other.complement) {
+                result.addAll(values);
+                result.addAll(other.values);
+                return new ValueSet(false, result);
+            }
+            if (complement && other.complement) {
+                result.addAll(values);
+                result.retainAll(other.values);
+                return new ValueSet(true, result);
+            }
+            ValueSet excluded = complement ? this : other;
+            ValueSet included = complement ? other : this;
+            result.addAll(excluded.values);
+            result.removeAll(included.values);
+            return new ValueSet(true, result);
+        }
+    }
+
+    // Compiled rule books of this process by file and content, so batch runs, reloads and routes naming the same
+    // file share one copy. Least recently used ones are dropped once their rule cells pass validator.ruleCacheCells;
+    // the newest stays even when it alone is larger. Runs keep the rule books they hold after an eviction.
+    private static class RuleBookCache {
+        private static final Map<String, RuleBook> ruleBooks = new LinkedHashMap<>(16, 0.75f, true);
+        private static long cells;
+
+        static synchronized RuleBook get(String key) {
+            return ruleBooks.get(key);
+        }
+
+        static synchronized void put(String key, RuleBook rules) {
+            RuleBook replaced = ruleBooks.put(key, rules);
+            if (replaced != null) cells -= cells(replaced);
+            cells += cells(rules);
+            Iterator<Map.Entry<String, RuleBook>> eldest = ruleBooks.entrySet().iterator();
+            while (cells > RULE_CACHE_CELLS && ruleBooks.size() > 1) {
+                cells -= cells(eldest.next().getValue());
+                eldest.remove();
+            }
+        }
+
+        private static long cells(RuleBook rules) {
+            return (long) rules.allRuleSets.size() * rules.columnNames.length;
+        }
+    }
+
+    // Holds the current rule book and swaps in a recompiled one whenever the rule-book file changes.
+    // Callers take current() once per validation, so a run finishes against the version it started with.
+    private static class RuleRegistry implements Closeable {
+        private static final long RELOAD_DELAY_MS = 500; // Let the writer finish saving before reading
+
+        private final Path ruleFile;
+        private final AtomicReference<RuleBook> current = new AtomicReference<>();
+        private final WatchService watcher;
+        private final Thread watchThread;
+
+        RuleRegistry(String ruleFilePath) throws IOException {
+            ruleFile = Paths.get(ruleFilePath).toAbsolutePath();
+            current.set(loadRules(ruleFile.toString()));
+
+            watcher = ruleFile.getFileSystem().newWatchService();
+            ruleFile.getParent().register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+            watchThread = new Thread(this::watch, "rule-book-watcher");
+            watchThread.setDaemon(true);
+            watchThread.start();
+        }
+
+        RuleBook current() {
+            return current.get();
+        }
+
+        private void watch() {
+            try {
+                while (true) {
+                    WatchKey key = watcher.take();
+                    boolean changed = false;
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        changed |= ruleFile.getFileName().equals(event.context());
+                    }
+                    key.reset();
+
+                    if (changed) {
+                        Thread.sleep(RELOAD_DELAY_MS);
+                        reload();
+                    }
+                }
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                // Registry closed
+            }
+        }
+
+        // Compile the new version off the validation threads, then publish it in one step
+        private void reload() {
+            try {
+                RuleBook rules = loadRules(ruleFile.toString());
+                if (!rules.version.equals(current().version)) {
+                    current.set(rules);
+                    System.out.println("Rule book reloaded, version " + rules.version);
+                }
+            } catch (Exception e) {
+                // Half-written or invalid rule book: keep validating with the current version
+                System.err.println("Could not reload rule book, keeping version " + current().version + ": " + e);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            watchThread.interrupt();
+            watcher.close();
+        }
+    }
+
+    // Compact binary copy of a rule book, keyed by the SHA-256 of the rule-book file and read back
+    // through a memory mapping. Layout: magic, version, hash, string table, column name ids, then
+    // per billing code its rule sets as string ids aligned to the columns.
+    private static class RuleSnapshot {
+        static final int MAGIC = 0x52425331; // "RBS1"
+        static final int VERSION = 1;
+
+        // Rule book stored in the snapshot, or null when it is missing, stale or unreadable
+        static RuleBook read(Path snapshot, byte[] hash) throws IOException {
+            if (!Files.isRegularFile(snapshot)) return null;
+
+            try (FileChannel channel = FileChannel.open(snapshot, StandardOpenOption.READ)) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) return null;
+                byte[] storedHash = new byte[hash.length];
+                buffer.get(storedHash);
+                if (!Arrays.equals(storedHash, hash)) return null;
+
+                String[] strings = new String[buffer.getInt()];
+                for (int i = 0; i < strings.length; i++) {
+                    byte[] bytes = new byte[buffer.getInt()];
+                    buffer.get(bytes);
+                    strings[i] = new String(bytes, StandardCharsets.UTF_8);
+                }
+
+                RuleBook rules = new RuleBook();
+                rules.columnNames = new String[buffer.getInt()];
+                for (int c = 0; c < rules.columnNames.length; c++) {
+                    rules.columnNames[c] = strings[buffer.getInt()];
+                }
+
+                int billingCodeCount = buffer.getInt();
+                for (int b = 0; b < billingCodeCount; b++) {
+                    String billingCode = strings[buffer.getInt()];
+                    int ruleSetCount = buffer.getInt();
+                    List<RuleSet> ruleSets = new ArrayList<>(ruleSetCount);
+                    for (int r = 0; r < ruleSetCount; r++) {
+                        String[] values = new String[rules.columnNames.length];
+                        for (int c = 0; c < values.length; c++) {
+                            values[c] = strings[buffer.getInt()];
+                        }
+                        ruleSets.add(new RuleSet(values));
+                    }
+                    rules.ruleSets.put(billingCode, ruleSets);
+                }
+
+                rules.buildIndexes();
+                return rules;
+            } catch (BufferUnderflowException | IndexOutOfBoundsException | NegativeArraySizeException e) {
+                return null; // Truncated or corrupt, rebuild it
+            }
+        }
+
+        // Write to a temp file first so readers never see a partial snapshot
+        static void write(Path snapshot, byte[] hash, RuleBook rules) throws IOException {
+            Map<String, Integer> stringIds = new LinkedHashMap<>();
+            for (String columnName : rules.columnNames) {
+                stringIds.putIfAbsent(columnName, stringIds.size());
+            }
+            for (Map.Entry<String, List<RuleSet>> entry : rules.ruleSets.entrySet()) {
+                stringIds.putIfAbsent(entry.getKey(), stringIds.size());
+                for (RuleSet ruleSet : entry.getValue()) {
+                    for (String value : ruleSet.values) {
+                        stringIds.putIfAbsent(value, stringIds.size());
+                    }
+                }
+            }
+
+            Path tempFile = Files.createTempFile(snapshot.toAbsolutePath().getParent(), snapshot.getFileName().toString(), ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.write(hash);
+
+                out.writeInt(stringIds.size());
+                for (String value : stringIds.keySet()) {
+                    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                    out.writeInt(bytes.length);
+                    out.write(bytes);
+                }
+
+                out.writeInt(rules.columnNames.length);
+                for (String columnName : rules.columnNames) {
+                    out.writeInt(stringIds.get(columnName));
+                }
+
+                out.writeInt(rules.ruleSets.size());
+                for (Map.Entry<String, List<RuleSet>> entry : rules.ruleSets.entrySet()) {
+                    out.writeInt(stringIds.get(entry.getKey()));
+                    out.writeInt(entry.getValue().size());
+                    for (RuleSet ruleSet : entry.getValue()) {
+                        for (String value : ruleSet.values) {
+                            out.writeInt(stringIds.get(value));
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                Files.deleteIfExists(tempFile);
+                throw e;
+            }
+            Files.move(tempFile, snapshot, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    // Validation results by rule index and rule-column values, shared by the runs of one rule book. Each key has
+    // one slot, so a colliding key replaces the entry there; entries are immutable, so workers read without locks.
+    // Memory is an estimate of what the entries keep reachable: the entry, its values and the result.
+    static class ResultCache {
+        static final int ENTRY_BYTES = 64;  // Entry and result objects with headers and fields
+        static final int STRING_BYTES = 40; // String and its array headers
+
+        private static class Entry {
+            final RuleIndex index;
+            final String[] values;
+            final int hash;
+            final ValidationResult result;
+            final long bytes;
+
+            Entry(RuleIndex index, String[] values, int hash, ValidationResult result) {
+                this.index = index;
+                this.values = values;
+                this.hash = hash;
+                this.result = result;
+                long size = ENTRY_BYTES + 16 + 4L * values.length;
+                for (String value : values) {
+                    size += STRING_BYTES + value.length();
+                }
+                if (result.mismatchedColumns != null) size += 16 + 4L * result.mismatchedColumns.length;
+                this.bytes = size;
+            }
+        }
+
+        final AtomicReferenceArray<Entry> slots;
+        final AtomicLong entries = new AtomicLong();
+        final AtomicLong bytes = new AtomicLong();
+
+        ResultCache(int maxEntries) {
+            slots = new AtomicReferenceArray<>(Integer.highestOneBit(maxEntries));
+        }
+
+        // The billing code's index stands in for the billing code: rows only reach their own code's index
+        static int hash(String[] actualValues, RuleIndex index) {
+            int hash = System.identityHashCode(index) * 31 + Arrays.hashCode(actualValues);
+            return hash ^ (hash >>> 16);
+        }
+
+        ValidationResult get(String[] actualValues, RuleIndex index, int hash) {
+            Entry entry = slots.get(hash & (slots.length() - 1));
+            if (entry == null || entry.hash != hash || entry.index != index || !Arrays.equals(entry.values, actualValues)) {
+                return null;
+            }
+            return entry.result;
+        }
+
+        void put(String[] actualValues, RuleIndex index, int hash, ValidationResult result) {
+            Entry entry = new Entry(index, actualValues, hash, result);
+            Entry replaced = slots.getAndSet(hash & (slots.length() - 1), entry);
+            if (replaced == null) {
+                entries.incrementAndGet();
+                bytes.addAndGet(entry.bytes);
+            } else {
+                bytes.addAndGet(entry.bytes - replaced.bytes);
+            }
+        }
+
+        // e.g. "Result cache: 91200 of 100000 rows (91.2%) reused, 8800 of 65536 slots used, about 2.1 MB"
+        String report(long runLookups, long runHits) {
+            return String.format(Locale.ROOT, "Result cache: %d of %d rows (%.1f%%) reused, %d of %d slots used, about %.1f MB",
+                    runHits, runLookups, runLookups > 0 ? 100.0 * runHits / runLookups : 0.0,
+                    entries.get(), slots.length(), bytes.get() / (1024.0 * 1024.0));
+        }
+    }
+
+    // Results of the previous run keyed by a fingerprint of each row's rule-column values. A stored result is
+    // reused only while the rule sets of the row's billing code are unchanged; the store is rewritten after
+    // every run with just that run's rows, so it does not grow beyond the input.
+    private static class ResultStore {
+        static final int MAGIC = 0x52535431; // "RST1"
+        static final int VERSION = 2;        // 2: rule text may use range, prefix and regex operators
+        static final long FNV_PRIME = 0x100000001b3L;
+        static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+        final Path file;
+        final RuleBook rules;
+        final FingerprintTable previous;
+        final FingerprintTable current = new FingerprintTable(1 << 12);
+        final Map<String, Long> ruleVersions = new HashMap<>(); // Per billing code
+        final ArrayDeque<long[]> pendingRows = new ArrayDeque<>(); // Looked up, result not recorded yet
+        long reusedRows;
+        long validatedRows;
+
+        private ResultStore(Path file, RuleBook rules, FingerprintTable previous) {
+            this.file = file;
+            this.rules = rules;
+            this.previous = previous;
+        }
+
+        // Store with the results saved at file, or an empty one when it is missing or unreadable
+        static ResultStore open(Path file, RuleBook rules) throws IOException {
+            FingerprintTable previous = new FingerprintTable(1 << 12);
+            if (Files.isRegularFile(file)) {
+                try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+                    if (in.readInt() == MAGIC && in.readInt() == VERSION) {
+                        int size = in.readInt();
+                        previous = new FingerprintTable(size);
+                        for (int i = 0; i < size; i++) {
+                            previous.put(in.readLong(), in.readLong(), in.readLong(), in.readInt());
+                        }
+                    }
+                } catch (EOFException e) {
+                    System.err.println("Ignoring truncated result store " + file);
+                    previous = new FingerprintTable(1 << 12);
+                }
+            }
+            return new ResultStore(file, rules, previous);
+        }
+
+        // Stored result for the row, or null when it has to be validated; call record() for every lookup, in order
+        ValidationResult lookup(String billingCode, String[] actualValues, RuleIndex index) {
+            long high = fingerprint(billingCode, actualValues, 0xcbf29ce484222325L, FNV_PRIME);
+            long low = fingerprint(billingCode, actualValues, GOLDEN_GAMMA, GOLDEN_GAMMA);
+            long ruleVersion = ruleVersions.computeIfAbsent(billingCode, this::ruleVersion);
+            pendingRows.add(new long[]{high, low, ruleVersion});
+
+            int slot = previous.find(high, low);
+            if (slot < 0 || previous.ruleVersions[slot] != ruleVersion) {
+                validatedRows++;
+                return null;
+            }
+            reusedRows++;
+            int result = previous.results[slot];
+            int position = result >>> 1;
+            RuleSet ruleSet = position > 0 ? index.ruleSets.get(position - 1) : null;
+            if ((result & 1) != 0 || ruleSet == null) {
+                return new ValidationResult((result & 1) != 0, ruleSet);
+            }
+            return new ValidationResult(ruleSet, actualValues); // Failing columns follow from the stored rule set
+        }
+
+        void record(ValidationResult result) {
+            long[] row = pendingRows.poll();
+            int position = result.matchedRuleRow != null ? result.matchedRuleRow.position : 0;
+            current.put(row[0], row[1], row[2], position << 1 | (result.isValid ? 1 : 0));
+        }
+
+        // Write to a temp file first so the next run never reads a partial store
+        void save() throws IOException {
+            Path tempFile = Files.createTempFile(file.toAbsolutePath().getParent(), file.getFileName().toString(), ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(current.size);
+                for (int slot = 0; slot < current.results.length; slot++) {
+                    if (current.results[slot] == FingerprintTable.FREE) continue;
+                    out.writeLong(current.highs[slot]);
+                    out.writeLong(current.lows[slot]);
+                    out.writeLong(current.ruleVersions[slot]);
+                    out.writeInt(current.results[slot]);
+                }
+            } catch (IOException e) {
+                Files.deleteIfExists(tempFile);
+                throw e;
+            }
+            Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        // Changes whenever the rule-book columns or this billing code's rule sets change, and with
+        // validator.nearestInBillingCode, which decides the nearest rule set stored for Wrong rows
+        private long ruleVersion(String billingCode) {
+            long hash = hash(0xcbf29ce484222325L, billingCode, FNV_PRIME);
+            hash = hash(hash, NEAREST_IN_BILLING_CODE ? "nearestInBillingCode" : "nearestInIndex", FNV_PRIME);
+            for (String columnName : rules.columnNames) {
+                hash = hash(hash, columnName, FNV_PRIME);
+            }
+            for (RuleSet ruleSet : rules.ruleSets.getOrDefault(billingCode, Collections.emptyList())) {
+                for (String value : ruleSet.values) {
+                    hash = hash(hash, value, FNV_PRIME);
+                }
+            }
+            return mix(hash);
+        }
+
+        private static long fingerprint(String billingCode, String[] actualValues, long seed, long multiplier) {
+            long hash = hash(seed, billingCode, multiplier);
+            for (String value : actualValues) {
+                hash = hash(hash, value, multiplier);
+            }
+            return mix(hash);
+        }
+
+        // Folds in the value followed by a separator, so ["ab", "c"] and ["a", "bc"] hash differently
+        private static long hash(long hash, String value, long multiplier) {
+            if (value == null) return (hash ^ 0x1e) * multiplier;
+            for (int i = 0; i < value.length(); i++) {
+                hash = (hash ^ value.charAt(i)) * multiplier;
+            }
+            return (hash ^ 0x1f) * multiplier;
+        }
+
+        private static long mix(long hash) {
+            hash = (hash ^ (hash >>> 33)) * 0xff51afd7ed558ccdL;
+            hash = (hash ^ (hash >>> 33)) * 0xc4ceb9fe1a85ec53L;
+            return hash ^ (hash >>> 33);
+        }
+    }
+
+    // Open-addressing map from a 128-bit fingerprint to a rule version and an encoded result,
+    // kept in flat arrays so millions of rows do not cost an object each
+    private static class FingerprintTable {
+        static final int FREE = -1;
+
+        long[] highs;
+        long[] lows;
+        long[] ruleVersions;
+        int[] results;
+        int size;
+
+        FingerprintTable(int expectedSize) {
+            int capacity = Integer.highestOneBit(Math.max(expectedSize, 4) * 4 - 1); // Load factor at most 1/2
+            highs = new long[capacity];
+            lows = new long[capacity];
+            ruleVersions = new long[capacity];
+            results = new int[capacity];
+            Arrays.fill(results, FREE);
+        }
+
+        // Slot holding the fingerprint, or -1
+        int find(long high, long low) {
+            int mask = results.length - 1;
+            for (int slot = (int) low & mask; results[slot] != FREE; slot = (slot + 1) & mask) {
+                if (highs[slot] == high && lows[slot] == low) return slot;
+            }
+            return -1;
+        }
+
+        void put(long high, long low, long ruleVersion, int result) {
+            if ((size + 1) * 2 > results.length) {
+                grow();
+            }
+            int mask = results.length - 1;
+            int slot = (int) low & mask;
+            while (results[slot] != FREE && (highs[slot] != high || lows[slot] != low)) {
+                slot = (slot + 1) & mask;
+            }
+            if (results[slot] == FREE) size++;
+            highs[slot] = high;
+            lows[slot] = low;
+            ruleVersions[slot] = ruleVersion;
+            results[slot] = result;
+        }
+
+        private void grow() {
+            FingerprintTable larger = new FingerprintTable(results.length);
+            for (int slot = 0; slot < results.length; slot++) {
+                if (results[slot] != FREE) {
+                    larger.put(highs[slot], lows[slot], ruleVersions[slot], results[slot]);
+                }
+            }
+            highs = larger.highs;
+            lows = larger.lows;
+            ruleVersions = larger.ruleVersions;
+            results = larger.results;
+        }
+    }
+
+    // Rule book row: raw values for the output plus the compiled rules, aligned to RuleBook.columnNames
+    static class RuleSet {
+        String[] values;
+        CellRule[] rules;
+        int id;
+        int billingCodeId;
+        int position; // 1-based, within its billing code
+        final LongAdder hits = new LongAdder(); // Rows it matched first, counted in adaptive mode
+        int[] checkOrder; // Columns to check, "Not Used" ones left out; see Selectivity
+
+        RuleSet(String[] values) {
+            this.values = values;
+            this.rules = new CellRule[values.length];
+            int[] columns = new int[values.length];
+            int columnCount = 0;
+            for (int c = 0; c < values.length; c++) {
+                rules[c] = CellRule.compile(values[c]);
+                if (rules[c].kind != CellRule.Kind.ANY) columns[columnCount++] = c;
+            }
+            checkOrder = Arrays.copyOf(columns, columnCount);
+        }
+    }
+
+    // Rule-book columns resolved once against the Excel B header row
+    private static class ColumnSchema {
+        String[] columnNames;
+        int billingCodeIndex;
+        int routingIndex = -1; // Column of RuleBook.routingColumn, -1 without routing
+        int[] columnIndexes;
+        boolean[] rangeColumns;  // Rule-book columns read with getExactCellValue, see RuleBook.rangeColumns
+
+        ColumnSchema(Row headerRow, String[] columnNames) {
+            this.columnNames = columnNames;
+            billingCodeIndex = findColumnIndex(headerRow, "BIILING_CODE");
+            columnIndexes = new int[columnNames.length];
+            for (int c = 0; c < columnNames.length; c++) {
+                columnIndexes[c] = findColumnIndex(headerRow, columnNames[c]);
+            }
+        }
+
+        ColumnSchema(String[] headerNames, String[] columnNames) {
+            this.columnNames = columnNames;
+            billingCodeIndex = findColumnIndex(headerNames, "BIILING_CODE");
+            columnIndexes = new int[columnNames.length];
+            for (int c = 0; c < columnNames.length; c++) {
+                columnIndexes[c] = findColumnIndex(headerNames, columnNames[c]);
+            }
+        }
+
+        // Read the rule-relevant cells of a row, aligned to the rule-book columns
+        String[] readValues(Row row) {
+            String[] values = new String[columnIndexes.length];
+            for (int c = 0; c < columnIndexes.length; c++) {
+                Cell cell = row.getCell(columnIndexes[c]);
+                values[c] = rangeColumns != null && rangeColumns[c] ? getExactCellValue(cell) : getCellValue(cell);
+            }
+            return values;
+        }
+
+        String[] readValues(Object[] cells) {
+            String[] values = new String[columnIndexes.length];
+            for (int c = 0; c < columnIndexes.length; c++) {
+                values[c] = rangeColumns != null && rangeColumns[c]
+                        ? getExactCellValue(cells, columnIndexes[c]) : getCellValue(cells, columnIndexes[c]);
+            }
+            return values;
+        }
+    }
+
+    // SAX handler for one worksheet: collects each <row> into cell values and hands it on.
+    // Cells hold a String, Double or Boolean like the matching Cell type, "" for blank, formula
+    // and error cells, and null where the row has no cell.
+    private static class SheetRowReader extends DefaultHandler {
+        interface RowHandler {
+            void row(int rowNum, Object[] cells);
+        }
+
+        private final ReadOnlySharedStringsTable sharedStrings;
+        private final RowHandler handler;
+        private final List<Object> cells = new ArrayList<>();
+        private final StringBuilder text = new StringBuilder();
+        private int rowNum = -1;
+        private int colIndex;
+        private String cellType;
+        private boolean hasFormula;
+        private boolean inText;
+
+        SheetRowReader(ReadOnlySharedStringsTable sharedStrings, RowHandler handler) {
+            this.sharedStrings = sharedStrings;
+            this.handler = handler;
+        }
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes attributes) {
+            switch (localName) {
+                case "row":
+                    String r = attributes.getValue("r");
+                    rowNum = r != null ? Integer.parseInt(r) - 1 : rowNum + 1;
+                    cells.clear();
+                    colIndex = -1;
+                    break;
+                case "c":
+                    String ref = attributes.getValue("r");
+                    colIndex = ref != null ? columnIndexOf(ref) : colIndex + 1;
+                    cellType = attributes.getValue("t");
+                    hasFormula = false;
+                    text.setLength(0);
+                    break;
+                case "f":
+                    hasFormula = true;
+                    break;
+                case "v":
+                case "t":
+                    inText = true;
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        @Override
+        public void characters(char[] ch, int start, int length) {
+            if (inText) {
+                text.append(ch, start, length);
+            }
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName) {
+            switch (localName) {
+                case "v":
+                case "t":
+                    inText = false;
+                    break;
+                case "c":
+                    while (cells.size() <= colIndex) {
+                        cells.add(null);
+                    }
+                    cells.set(colIndex, cellValue());
+                    break;
+                case "row":
+                    handler.row(rowNum, cells.toArray());
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        private Object cellValue() {
+            if (hasFormula || text.length() == 0) return "";
+            if (cellType == null || cellType.equals("n")) return Double.parseDouble(text.toString());
+            switch (cellType) {
+                case "s": return sharedStrings.getItemAt(Integer.parseInt(text.toString().trim())).getString();
+                case "inlineStr":
+                case "str": return text.toString();
+                case "b": return text.charAt(0) == '1';
+                default: return "";
+            }
+        }
+
+        // Column index of a cell reference such as "AB12"
+        private static int columnIndexOf(String ref) {
+            int col = 0;
+            for (int i = 0; i < ref.length() && Character.isLetter(ref.charAt(i)); i++) {
+                col = col * 26 + (Character.toUpperCase(ref.charAt(i)) - 'A' + 1);
+            }
+            return col - 1;
+        }
+    }
+
+    // Decision tree over one billing code's rule sets, branching on exact-value columns
+    static class RuleIndex {
+        static final RuleIndex EMPTY = new RuleIndex(Collections.emptyList());
+        static final int LEAF_SIZE = 4;
+        static final int MAX_DEPTH = 4;
+
+        List<RuleSet> ruleSets; // rule-book order
+        int column = -1; // column this node branches on, -1 for a leaf
+        Map<String, RuleIndex> branches;
+        RuleIndex otherwise; // rule sets that do not pin the column to a list of values
+        GeneratedMatcher matcher; // Leaves only, when generated matchers are on and the leaf is small enough
+        volatile List<RuleSet> matchOrder; // Leaves only: ruleSets hottest first in adaptive mode, null otherwise
+
+        RuleIndex(List<RuleSet> ruleSets) {
+            this.ruleSets = ruleSets;
+        }
+
+        // Rule sets that can still match the row, in rule-book order
+        List<RuleSet> candidates(String[] actualValues) {
+            return leaf(actualValues).ruleSets;
+        }
+
+        RuleIndex leaf(String[] actualValues) {
+            RuleIndex node = this;
+            while (node.column >= 0) {
+                RuleIndex branch = node.branches.get(CellRule.fold(actualValues[node.column]));
+                node = branch != null ? branch : node.otherwise;
+            }
+            return node;
+        }
+
+        static RuleIndex build(List<RuleSet> ruleSets, BitSet usedColumns) {
+            RuleIndex node = new RuleIndex(ruleSets);
+            if (ruleSets.size() <= LEAF_SIZE || usedColumns.cardinality() >= MAX_DEPTH) return node;
+
+            int column = mostDiscriminatingColumn(ruleSets, usedColumns);
+            if (column < 0) return node;
+
+            // A rule set pinning the column goes under each value it allows, any other goes under every branch
+            Map<String, List<RuleSet>> byValue = new HashMap<>();
+            for (RuleSet ruleSet : ruleSets) {
+                Set<String> values = ruleSet.rules[column].pinnedValues();
+                if (values == null) continue;
+                for (String value : values) {
+                    byValue.putIfAbsent(value, new ArrayList<>());
+                }
+            }
+            List<RuleSet> unpinned = new ArrayList<>();
+            for (RuleSet ruleSet : ruleSets) {
+                Set<String> values = ruleSet.rules[column].pinnedValues();
+                if (values == null) {
+                    unpinned.add(ruleSet);
+                    for (List<RuleSet> branch : byValue.values()) {
+                        branch.add(ruleSet);
+                    }
+                } else {
+                    for (String value : values) {
+                        byValue.get(value).add(ruleSet);
+                    }
+                }
+            }
+
+            BitSet childColumns = (BitSet) usedColumns.clone();
+            childColumns.set(column);
+            node.column = column;
+            node.branches = new HashMap<>();
+            for (Map.Entry<String, List<RuleSet>> entry : byValue.entrySet()) {
+                node.branches.put(entry.getKey(), build(entry.getValue(), childColumns));
+            }
+            node.otherwise = build(unpinned, childColumns);
+            return node;
+        }
+
+        // Column with the fewest expected candidates per row after branching, -1 if none helps
+        private static int mostDiscriminatingColumn(List<RuleSet> ruleSets, BitSet usedColumns) {
+            int bestColumn = -1;
+            double bestExpected = ruleSets.size();
+            int columnCount = ruleSets.get(0).rules.length;
+
+            for (int c = 0; c < columnCount; c++) {
+                if (usedColumns.get(c)) continue;
+
+                Set<String> distinctValues = new HashSet<>();
+                int unpinned = 0;
+                int memberships = 0;
+                for (RuleSet ruleSet : ruleSets) {
+                    Set<String> values = ruleSet.rules[c].pinnedValues();
+                    if (values == null) {
+                        unpinned++;
+                    } else {
+                        distinctValues.addAll(values);
+                        memberships += values.size();
+                    }
+                }
+                if (distinctValues.isEmpty()) continue;
+
+                double expected = unpinned + (double) memberships / distinctValues.size();
+                if (expected < bestExpected) {
+                    bestExpected = expected;
+                    bestColumn = c;
+                }
+            }
+            return bestColumn;
+        }
+    }
+
+    // Generates one MethodHandle chain per small index leaf: for each rule set a conjunction of its column tests,
+    // with expected values and column indexes bound in and "Not Used" columns left out, and per leaf a guard per
+    // rule set in rule-book order that returns the first match. If generation fails, matching stays interpreted.
+    static class MatcherCompiler {
+        static final int MAX_RULE_SETS = 64; // Longer chains stay interpreted; the JIT stops inlining them anyway
+
+        final MethodHandle exact;
+        final MethodHandle allowed;
+        final MethodHandle excluded;
+        final MethodHandle generic;
+        final Map<RuleSet, MethodHandle> ruleSetTests = new IdentityHashMap<>(); // Shared by leaves
+
+        private MatcherCompiler() throws ReflectiveOperationException {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            exact = lookup.findStatic(MatcherCompiler.class, "exact",
+                    MethodType.methodType(boolean.class, String.class, int.class, String[].class));
+            allowed = lookup.findStatic(MatcherCompiler.class, "allowed",
+                    MethodType.methodType(boolean.class, Set.class, int.class, String[].class));
+            excluded = lookup.findStatic(MatcherCompiler.class, "excluded",
+                    MethodType.methodType(boolean.class, Set.class, int.class, String[].class));
+            generic = lookup.findStatic(MatcherCompiler.class, "generic",
+                    MethodType.methodType(boolean.class, CellRule.class, int.class, String[].class));
+        }
+
+        static void compile(RuleBook rules) {
+            Map<RuleIndex, GeneratedMatcher> matchers = new IdentityHashMap<>();
+            try {
+                MatcherCompiler compiler = new MatcherCompiler();
+                for (RuleIndex index : rules.indexes.values()) {
+                    compiler.compileLeaves(index, matchers);
+                }
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                System.err.println("Could not generate rule matchers, matching stays interpreted: " + e);
+                return;
+            }
+            for (Map.Entry<RuleIndex, GeneratedMatcher> entry : matchers.entrySet()) {
+                entry.getKey().matcher = entry.getValue();
+            }
+        }
+
+        private void compileLeaves(RuleIndex node, Map<RuleIndex, GeneratedMatcher> matchers) {
+            if (node.column >= 0) {
+                for (RuleIndex branch : node.branches.values()) {
+                    compileLeaves(branch, matchers);
+                }
+                compileLeaves(node.otherwise, matchers);
+                return;
+            }
+            if (node.ruleSets.isEmpty() || node.ruleSets.size() > MAX_RULE_SETS) return;
+
+            // (String[]) -> position of the first matching rule set in the leaf, or -1
+            MethodHandle firstMatch = constant(int.class, -1);
+            for (int i = node.ruleSets.size() - 1; i >= 0; i--) {
+                firstMatch = MethodHandles.guardWithTest(ruleSetTest(node.ruleSets.get(i)), constant(int.class, i), firstMatch);
+            }
+            matchers.put(node, new GeneratedMatcher(firstMatch));
+        }
+
+        // (String[]) -> true when every column the rule set constrains accepts the row, tested in check order
+        private MethodHandle ruleSetTest(RuleSet ruleSet) {
+            MethodHandle test = ruleSetTests.get(ruleSet);
+            if (test != null) return test;
+            for (int i = ruleSet.checkOrder.length - 1; i >= 0; i--) {
+                int c = ruleSet.checkOrder[i];
+                MethodHandle columnTest = columnTest(ruleSet.rules[c], c);
+                if (columnTest == null) continue;
+                test = test == null ? columnTest : MethodHandles.guardWithTest(columnTest, test, constant(boolean.class, false));
+            }
+            if (test == null) {
+                test = constant(boolean.class, true);
+            }
+            ruleSetTests.put(ruleSet, test);
+            return test;
+        }
+
+        private MethodHandle columnTest(CellRule rule, int column) {
+            switch (rule.kind) {
+                case ANY: return null;
+                case EXACT: return MethodHandles.insertArguments(exact, 0, rule.exactValue, column);
+                case ALLOW: return MethodHandles.insertArguments(allowed, 0, rule.values, column);
+                case DENY: return MethodHandles.insertArguments(excluded, 0, rule.values, column);
+                default: return MethodHandles.insertArguments(generic, 0, rule, column);
+            }
+        }
+
+        private static MethodHandle constant(Class<?> type, Object value) {
+            return MethodHandles.dropArguments(MethodHandles.constant(type, value), 0, String[].class);
+        }
+
+        private static boolean exact(String expectedValue, int column, String[] actualValues) {
+            return expectedValue.equals(CellRule.fold(actualValues[column]));
+        }
+
+        private static boolean allowed(Set<String> values, int column, String[] actualValues) {
+            return values.contains(CellRule.fold(actualValues[column]));
+        }
+
+        private static boolean excluded(Set<String> values, int column, String[] actualValues) {
+            return !values.contains(CellRule.fold(actualValues[column]));
+        }
+
+        private static boolean generic(CellRule rule, int column, String[] actualValues) {
+            return rule.matches(actualValues[column]);
+        }
+    }
+
+    // Generated first-match matcher of one index leaf. Its answers are definite: null means no candidate matches
+    static class GeneratedMatcher {
+        final MethodHandle firstMatch;
+
+        GeneratedMatcher(MethodHandle firstMatch) {
+            this.firstMatch = firstMatch;
+        }
+
+        // First matching rule set, or null when none matches; ruleSets are the leaf's, in the order the matcher
+        // was generated for
+        RuleSet firstMatch(List<RuleSet> ruleSets, String[] actualValues) {
+            int position;
+            try {
+                position = (int) firstMatch.invokeExact(actualValues);
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new IllegalStateException("Generated rule matcher failed", e);
+            }
+            return position >= 0 ? ruleSets.get(position) : null;
+        }
+    }
+
+    // Rule cell compiled once when the rule book is read; numbers, prefixes and patterns are parsed here, not per row
+    static class CellRule {
+        enum Kind { ANY, EXACT, ALLOW, DENY, RANGE, PREFIX, REGEX }
+
+        // Separates a cell's text from its untruncated number in values of range columns; cell text has no NUL
+        static final char EXACT_NUMBER = '\0';
+
+        Kind kind;
+        String exactValue;
+        Set<String> values;
+        double lowerBound = Double.NEGATIVE_INFINITY; // RANGE, e.g. >=100 or 10..20
+        double upperBound = Double.POSITIVE_INFINITY;
+        boolean lowerInclusive = true;
+        boolean upperInclusive = true;
+        PrefixTrie prefixes;                          // PREFIX, next to the exact values of the same list
+        Pattern pattern;                              // REGEX, e.g. re:[A-Z]{2}\d+
+
+        CellRule(Kind kind, String exactValue, Set<String> values) {
+            this.kind = kind;
+            this.exactValue = exactValue;
+            this.values = values;
+        }
+
+        static CellRule compile(String expectedValue) {
+            if (expectedValue.equalsIgnoreCase("Not Used")) { // Any value is valid
+                return new CellRule(Kind.ANY, null, null);
+            }
+            if (expectedValue.startsWith("re:")) { // Regular expression over the whole value
+                CellRule rule = new CellRule(Kind.REGEX, null, null);
+                rule.pattern = Pattern.compile(expectedValue.substring(3), Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+                return rule;
+            }
+            if (expectedValue.startsWith("<>")) { // Exclusion rule, e.g. <>(A,B)
+                String excluded = expectedValue.length() > 3 ? expectedValue.substring(3, expectedValue.length() - 1) : "";
+                return new CellRule(Kind.DENY, null, foldAll(excluded.split(",")));
+            }
+            CellRule range = compileRange(expectedValue);
+            if (range != null) {
+                return range;
+            }
+            if (expectedValue.contains(",") || expectedValue.endsWith("*")) { // Multiple values allowed
+                String[] rawValues = expectedValue.split(",");
+                PrefixTrie prefixes = null;
+                List<String> exactValues = new ArrayList<>();
+                for (String rawValue : rawValues) {
+                    String value = rawValue.trim();
+                    if (value.endsWith("*")) { // Prefix, e.g. AB*
+                        if (prefixes == null) prefixes = new PrefixTrie();
+                        prefixes.add(fold(value.substring(0, value.length() - 1)));
+                    } else {
+                        exactValues.add(value);
+                    }
+                }
+                if (prefixes == null) {
+                    return new CellRule(Kind.ALLOW, null, foldAll(rawValues));
+                }
+                CellRule rule = new CellRule(Kind.PREFIX, null, foldAll(exactValues.toArray(new String[0])));
+                rule.prefixes = prefixes;
+                return rule;
+            }
+            return new CellRule(Kind.EXACT, fold(expectedValue), null); // Exact match
+        }
+
+        // ">=100", ">100", "<=100", "<100" or "10..20" (inclusive); null when the text is not numeric
+        private static CellRule compileRange(String expectedValue) {
+            String text = expectedValue.trim();
+            CellRule rule = new CellRule(Kind.RANGE, null, null);
+            if (text.startsWith(">=") || text.startsWith(">")) {
+                rule.lowerInclusive = text.startsWith(">=");
+                rule.lowerBound = number(text.substring(rule.lowerInclusive ? 2 : 1));
+                return Double.isNaN(rule.lowerBound) ? null : rule;
+            }
+            if (text.startsWith("<=") || text.startsWith("<")) {
+                rule.upperInclusive = text.startsWith("<=");
+                rule.upperBound = number(text.substring(rule.upperInclusive ? 2 : 1));
+                return Double.isNaN(rule.upperBound) ? null : rule;
+            }
+            int dots = text.indexOf("..");
+            if (dots > 0) {
+                rule.lowerBound = number(text.substring(0, dots));
+                rule.upperBound = number(text.substring(dots + 2));
+                return Double.isNaN(rule.lowerBound) || Double.isNaN(rule.upperBound) ? null : rule;
+            }
+            return null;
+        }
+
+        // Values this rule accepts when it is an exact value or allow-list, null otherwise
+        Set<String> pinnedValues() {
+            switch (kind) {
+                case EXACT: return Collections.singleton(exactValue);
+                case ALLOW: return values;
+                default: return null;
+            }
+        }
+
+        boolean matches(String actualValue) {
+            switch (kind) {
+                case ANY: return true;
+                case DENY: return !values.contains(fold(actualValue));
+                case ALLOW: return values.contains(fold(actualValue));
+                case RANGE: return inRange(number(exactNumber(actualValue)));
+                case PREFIX: {
+                    String folded = fold(actualValue);
+                    return values.contains(folded) || prefixes.hasPrefixOf(folded);
+                }
+                case REGEX: return pattern.matcher(text(actualValue)).matches();
+                default: return exactValue.equals(fold(actualValue));
+            }
+        }
+
+        private boolean inRange(double number) {
+            // NaN, for a value that is not a number, fails every comparison
+            return (lowerInclusive ? number >= lowerBound : number > lowerBound)
+                    && (upperInclusive ? number <= upperBound : number < upperBound);
+        }
+
+        // NaN unless the text is a finite decimal number
+        private static double number(String text) {
+            try {
+                double number = Double.parseDouble(text.trim());
+                return Double.isInfinite(number) ? Double.NaN : number;
+            } catch (NumberFormatException e) {
+                return Double.NaN;
+            }
+        }
+
+        private static Set<String> foldAll(String[] rawValues) {
+            Set<String> folded = new HashSet<>();
+            for (String value : rawValues) {
+                folded.add(fold(value.trim()));
+            }
+            return folded;
+        }
+
+        private static String fold(String value) {
+            return text(value).toLowerCase(Locale.ROOT);
+        }
+
+        // The cell text of a value read by getExactCellValue, without its untruncated number
+        private static String text(String actualValue) {
+            int mark = actualValue.indexOf(EXACT_NUMBER);
+            return mark < 0 ? actualValue : actualValue.substring(0, mark);
+        }
+
+        // The untruncated number of a value read by getExactCellValue, or the value itself
+        private static String exactNumber(String actualValue) {
+            int mark = actualValue.indexOf(EXACT_NUMBER);
+            return mark < 0 ? actualValue : actualValue.substring(mark + 1);
+        }
+    }
+
+    // Prefixes of "AB*" rule values; children are kept sorted by character so a lookup allocates nothing
+    static class PrefixTrie {
+        private char[] labels = new char[0];
+        private PrefixTrie[] children = new PrefixTrie[0];
+        private boolean end;
+
+        void add(String prefix) {
+            PrefixTrie node = this;
+            for (int i = 0; i < prefix.length(); i++) {
+                char label = prefix.charAt(i);
+                int slot = Arrays.binarySearch(node.labels, label);
+                if (slot < 0) {
+                    slot = -slot - 1;
+                    node.labels = insert(node.labels, slot, label);
+                    PrefixTrie[] children = new PrefixTrie[node.children.length + 1];
+                    System.arraycopy(node.children, 0, children, 0, slot);
+                    System.arraycopy(node.children, slot, children, slot + 1, node.children.length - slot);
+                    children[slot] = new PrefixTrie();
+                    node.children = children;
+                }
+                node = node.children[slot];
+            }
+            node.end = true;
+        }
+
+        boolean hasPrefixOf(String value) {
+            PrefixTrie node = this;
+            for (int i = 0; !node.end; i++) {
+                if (i == value.length()) return false;
+                int slot = Arrays.binarySearch(node.labels, value.charAt(i));
+                if (slot < 0) return false;
+                node = node.children[slot];
+            }
+            return true;
+        }
+
+        private static char[] insert(char[] labels, int slot, char label) {
+            char[] result = new char[labels.length + 1];
+            System.arraycopy(labels, 0, result, 0, slot);
+            result[slot] = label;
+            System.arraycopy(labels, slot, result, slot + 1, labels.length - slot);
+            return result;
+        }
+    }
 }
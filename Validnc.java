@@ -1,49 +1,87 @@
+import org.apache.poi.openxml4j.exceptions.OpenXML4JException;
+import org.apache.poi.openxml4j.opc.OPCPackage;
 import org.apache.poi.ss.usermodel.*;
+import org.apache.poi.util.XMLHelper;
+import org.apache.poi.xssf.eventusermodel.ReadOnlySharedStringsTable;
+import org.apache.poi.xssf.eventusermodel.XSSFReader;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
 import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.DefaultHandler;
 
+import javax.xml.parsers.ParserConfigurationException;
 import java.io.*;
 import java.util.*;
 
 public class ExcelValidator {
 
+    private static final int OUTPUT_ROW_WINDOW = Integer.getInteger("validator.outputRowWindow", 1000);
+    private static final boolean COMPRESS_TEMP_FILES =
+            Boolean.parseBoolean(System.getProperty("validator.compressTempFiles", "true"));
+    // Write each input row once with the id of its matched rule row, listed once on a "Rules" sheet, instead of
+    // following it with a copy of that rule row; correctSampleRate N keeps every Nth Correct row and drops the rest
+    private static final boolean COMPACT_REPORT = Boolean.getBoolean("validator.compactReport");
+    private static final int CORRECT_SAMPLE_RATE = Integer.getInteger("validator.correctSampleRate", 1);
+
     public static ByteArrayOutputStream validateExcel(
             String ruleFilePath,
             ByteArrayOutputStream inputFileStream) throws IOException {
+        return validateExcel(ruleFilePath, inputFileStream, false);
+    }
+
+    public static ByteArrayOutputStream validateExcel(
+            String ruleFilePath,
+            ByteArrayOutputStream inputFileStream,
+            boolean streamInput) throws IOException {
 
         // Read the rules from the rule file
-        Map<String, List<Map<String, String>>> rules = readRules(ruleFilePath);
+        RuleBook rules = readRules(ruleFilePath);
 
         // Validate and update the input Excel using the rules
-        return validateAndUpdateExcel(new ByteArrayInputStream(inputFileStream.toByteArray()), rules);
+        InputStream input = new ByteArrayInputStream(inputFileStream.toByteArray());
+        if (streamInput) {
+            // Read the input with the XSSF event model instead of building the workbook in memory
+            return validateAndUpdateExcelStreaming(input, rules);
+        }
+        return validateAndUpdateExcel(input, rules);
     }
 
-    private static Map<String, List<Map<String, String>>> readRules(String ruleFilePath) throws IOException {
-        Map<String, List<Map<String, String>>> rules = new HashMap<>();
+    private static RuleBook readRules(String ruleFilePath) throws IOException {
+        RuleBook rules = new RuleBook();
 
         try (FileInputStream fis = new FileInputStream(ruleFilePath);
              Workbook workbook = new XSSFWorkbook(fis)) {
             Sheet sheet = workbook.getSheetAt(0);
             Row headerRow = sheet.getRow(0);
 
-            List<String> columnNames = new ArrayList<>();
+            Set<String> columnNames = new LinkedHashSet<>();
             for (Cell cell : headerRow) {
                 columnNames.add(cell.getStringCellValue());
             }
+            rules.columnNames = columnNames.toArray(new String[0]);
+
+            // Resolve rule-book column positions once
+            int billingCodeIndex = findColumnIndex(headerRow, "BIILING_CODE");
+            int[] colIndexes = new int[rules.columnNames.length];
+            for (int c = 0; c < colIndexes.length; c++) {
+                colIndexes[c] = findColumnIndex(headerRow, rules.columnNames[c]);
+            }
 
             for (int i = 1; i <= sheet.getLastRowNum(); i++) {
                 Row row = sheet.getRow(i);
                 if (row == null) continue;
 
-                String billingCode = getCellValue(row.getCell(findColumnIndex(headerRow, "BIILING_CODE")));
-                Map<String, String> ruleSet = new HashMap<>();
+                String billingCode = getCellValue(row.getCell(billingCodeIndex));
+                String[] ruleValues = new String[colIndexes.length];
 
-                for (String columnName : columnNames) {
-                    int colIndex = findColumnIndex(headerRow, columnName);
-                    String cellValue = getCellValue(row.getCell(colIndex));
-                    ruleSet.put(columnName, cellValue);
+                for (int c = 0; c < colIndexes.length; c++) {
+                    ruleValues[c] = getCellValue(row.getCell(colIndexes[c]));
                 }
 
-                rules.computeIfAbsent(billingCode, k -> new ArrayList<>()).add(ruleSet);
+                rules.ruleSets.computeIfAbsent(billingCode, k -> new ArrayList<>()).add(new RuleSet(ruleValues));
             }
         }
         return rules;
@@ -51,12 +89,13 @@ public class ExcelValidator {
 
     private static ByteArrayOutputStream validateAndUpdateExcel(
             InputStream inputFileStream,
-            Map<String, List<Map<String, String>>> rules) throws IOException {
+            RuleBook rules) throws IOException {
 
         ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
 
         try (Workbook inputWorkbook = new XSSFWorkbook(inputFileStream);
-             Workbook outputWorkbook = new XSSFWorkbook()) {
+             SXSSFWorkbook outputWorkbook = newOutputWorkbook();
+             Closeable tempFiles = outputWorkbook::dispose) { // Deleted even when validation fails
 
             Sheet inputSheet = inputWorkbook.getSheetAt(0);
             Sheet outputSheet = outputWorkbook.createSheet("Validation Results");
@@ -64,7 +103,7 @@ public class ExcelValidator {
             Row inputHeaderRow = inputSheet.getRow(0);
             Row outputHeaderRow = outputSheet.createRow(0);
 
-            // Copy header row to the output file and add "Validation Result" column
+            // Copy header row to the output file and add "Validation Result" and "Mismatched Columns" columns
             for (int i = 0; i < inputHeaderRow.getLastCellNum(); i++) {
                 Cell inputCell = inputHeaderRow.getCell(i);
                 Cell outputCell = outputHeaderRow.createCell(i);
@@ -73,6 +112,11 @@ public class ExcelValidator {
                 }
             }
             outputHeaderRow.createCell(inputHeaderRow.getLastCellNum()).setCellValue("Validation Result");
+            outputHeaderRow.createCell(inputHeaderRow.getLastCellNum() + 1).setCellValue("Mismatched Columns");
+            if (COMPACT_REPORT) outputHeaderRow.createCell(inputHeaderRow.getLastCellNum() + 2).setCellValue("Rule Id");
+
+            ColumnSchema schema = new ColumnSchema(inputHeaderRow, rules.columnNames);
+            CompactReport compactReport = COMPACT_REPORT ? new CompactReport(CORRECT_SAMPLE_RATE) : null;
 
             int outputRowIndex = 1;
 
@@ -81,55 +125,243 @@ public class ExcelValidator {
                 Row inputRow = inputSheet.getRow(i);
                 if (inputRow == null) continue;
 
-                String billingCode = getCellValue(inputRow.getCell(findColumnIndex(inputHeaderRow, "BIILING_CODE")));
-                List<Map<String, String>> ruleSets = rules.getOrDefault(billingCode, new ArrayList<>());
+                String billingCode = getCellValue(inputRow.getCell(schema.billingCodeIndex));
+                List<RuleSet> ruleSets = rules.ruleSets.getOrDefault(billingCode, Collections.emptyList());
 
-                ValidationResult result = validateRowAgainstRules(inputRow, inputHeaderRow, ruleSets);
+                ValidationResult result = validateRowAgainstRules(schema.readValues(inputRow), ruleSets);
+                if (compactReport != null && !compactReport.includes(result)) continue;
 
                 Row outputRow = outputSheet.createRow(outputRowIndex++);
                 copyRow(inputRow, outputRow);
                 outputRow.createCell(inputHeaderRow.getLastCellNum()).setCellValue(result.isValid ? "Correct" : "Wrong");
+                if (result.mismatchedColumns != null) {
+                    outputRow.createCell(inputHeaderRow.getLastCellNum() + 1)
+                            .setCellValue(columnNames(result.mismatchedColumns, rules.columnNames));
+                }
 
-                if (result.matchedRuleRow != null) {
+                if (compactReport != null) {
+                    if (result.matchedRuleRow != null) {
+                        outputRow.createCell(inputHeaderRow.getLastCellNum() + 2)
+                                .setCellValue(compactReport.ruleId(result.matchedRuleRow));
+                    }
+                } else if (result.matchedRuleRow != null) {
                     Row ruleRow = outputSheet.createRow(outputRowIndex++);
-                    populateRuleRow(ruleRow, inputHeaderRow, result.matchedRuleRow);
+                    populateRuleRow(ruleRow, schema, result.matchedRuleRow);
                     ruleRow.createCell(inputHeaderRow.getLastCellNum()).setCellValue(result.isValid ? "Correct" : "Wrong");
                 }
             }
+            if (compactReport != null) compactReport.writeRules(outputWorkbook, rules.columnNames);
 
             outputWorkbook.write(outputStream);
         }
         return outputStream;
     }
 
-    private static ValidationResult validateRowAgainstRules(Row row, Row headerRow, List<Map<String, String>> ruleSets) {
-        for (Map<String, String> ruleSet : ruleSets) {
-            boolean isMatch = true;
+    private static ByteArrayOutputStream validateAndUpdateExcelStreaming(
+            InputStream inputFileStream,
+            RuleBook rules) throws IOException {
 
-            for (Map.Entry<String, String> rule : ruleSet.entrySet()) {
-                String columnName = rule.getKey();
-                String expectedValue = rule.getValue();
-                int colIndex = findColumnIndex(headerRow, columnName);
-                String actualValue = getCellValue(row.getCell(colIndex));
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
 
-                if (!validateCellValue(expectedValue, actualValue)) {
-                    isMatch = false;
-                    break;
+        try (OPCPackage inputPackage = OPCPackage.open(inputFileStream);
+             SXSSFWorkbook outputWorkbook = newOutputWorkbook();
+             Closeable tempFiles = outputWorkbook::dispose) { // Deleted even when validation fails
+
+            Sheet outputSheet = outputWorkbook.createSheet("Validation Results");
+            StreamingRowValidator rowValidator = new StreamingRowValidator(rules, outputSheet);
+            readFirstSheet(inputPackage, rowValidator);
+            if (rowValidator.compactReport != null && rowValidator.schema != null) {
+                rowValidator.compactReport.writeRules(outputWorkbook, rules.columnNames);
+            }
+
+            outputWorkbook.write(outputStream);
+        } catch (OpenXML4JException | SAXException | ParserConfigurationException e) {
+            throw new IOException("Could not stream input workbook", e);
+        }
+        return outputStream;
+    }
+
+    private static void readFirstSheet(OPCPackage inputPackage, SheetRowReader.RowHandler handler)
+            throws IOException, OpenXML4JException, SAXException, ParserConfigurationException {
+        XSSFReader reader = new XSSFReader(inputPackage);
+        ReadOnlySharedStringsTable sharedStrings = new ReadOnlySharedStringsTable(inputPackage);
+
+        XMLReader parser = XMLHelper.newXMLReader();
+        parser.setContentHandler(new SheetRowReader(sharedStrings, handler));
+        try (InputStream sheetData = reader.getSheetsData().next()) {
+            parser.parse(new InputSource(sheetData));
+        }
+    }
+
+    private static class StreamingRowValidator implements SheetRowReader.RowHandler {
+        RuleBook rules;
+        Sheet outputSheet;
+        ColumnSchema schema;
+        int resultColIndex;
+        int outputRowIndex = 1;
+        CompactReport compactReport = COMPACT_REPORT ? new CompactReport(CORRECT_SAMPLE_RATE) : null;
+
+        StreamingRowValidator(RuleBook rules, Sheet outputSheet) {
+            this.rules = rules;
+            this.outputSheet = outputSheet;
+        }
+
+        @Override
+        public void row(int rowNum, Object[] cells) {
+            if (rowNum == 0) {
+                writeHeader(cells);
+                return;
+            }
+            if (schema == null) {
+                throw new IllegalArgumentException("Header row not found");
+            }
+
+            String billingCode = getCellValue(cells, schema.billingCodeIndex);
+            List<RuleSet> ruleSets = rules.ruleSets.getOrDefault(billingCode, Collections.emptyList());
+
+            ValidationResult result = validateRowAgainstRules(schema.readValues(cells), ruleSets);
+            if (compactReport != null && !compactReport.includes(result)) return;
+
+            Row outputRow = outputSheet.createRow(outputRowIndex++);
+            copyCells(cells, outputRow);
+            outputRow.createCell(resultColIndex).setCellValue(result.isValid ? "Correct" : "Wrong");
+            if (result.mismatchedColumns != null) {
+                outputRow.createCell(resultColIndex + 1).setCellValue(columnNames(result.mismatchedColumns, rules.columnNames));
+            }
+
+            if (compactReport != null) {
+                if (result.matchedRuleRow != null) {
+                    outputRow.createCell(resultColIndex + 2).setCellValue(compactReport.ruleId(result.matchedRuleRow));
+                }
+            } else if (result.matchedRuleRow != null) {
+                Row ruleRow = outputSheet.createRow(outputRowIndex++);
+                populateRuleRow(ruleRow, schema, result.matchedRuleRow);
+                ruleRow.createCell(resultColIndex).setCellValue(result.isValid ? "Correct" : "Wrong");
+            }
+        }
+
+        // Copy header row to the output file and add "Validation Result" and "Mismatched Columns" columns
+        private void writeHeader(Object[] cells) {
+            String[] headerNames = new String[cells.length];
+            Row outputHeaderRow = outputSheet.createRow(0);
+            for (int i = 0; i < cells.length; i++) {
+                Cell outputCell = outputHeaderRow.createCell(i);
+                if (cells[i] != null) {
+                    headerNames[i] = String.valueOf(cells[i]);
+                    outputCell.setCellValue(headerNames[i]);
+                }
+            }
+            resultColIndex = cells.length;
+            outputHeaderRow.createCell(resultColIndex).setCellValue("Validation Result");
+            outputHeaderRow.createCell(resultColIndex + 1).setCellValue("Mismatched Columns");
+            if (COMPACT_REPORT) outputHeaderRow.createCell(resultColIndex + 2).setCellValue("Rule Id");
+
+            schema = new ColumnSchema(headerNames, rules.columnNames);
+        }
+    }
+
+    // Matched rule rows of a compact report, numbered from 1 in the order rows first match them, and the
+    // sampling of Correct rows
+    private static class CompactReport {
+        final int correctSampleRate;
+        final Map<RuleSet, Integer> ruleIds = new IdentityHashMap<>();
+        final List<RuleSet> rules = new ArrayList<>(); // By rule id - 1
+        long correctRows;
+        long writtenCorrectRows;
+
+        CompactReport(int correctSampleRate) {
+            this.correctSampleRate = Math.max(correctSampleRate, 1);
+        }
+
+        // Wrong rows are always written, Correct ones the first of every correctSampleRate
+        boolean includes(ValidationResult result) {
+            if (!result.isValid) return true;
+            if (correctRows++ % correctSampleRate != 0) return false;
+            writtenCorrectRows++;
+            return true;
+        }
+
+        int ruleId(RuleSet ruleSet) {
+            Integer ruleId = ruleIds.get(ruleSet);
+            if (ruleId == null) {
+                rules.add(ruleSet);
+                ruleId = rules.size();
+                ruleIds.put(ruleSet, ruleId);
+            }
+            return ruleId;
+        }
+
+        // "Rules" sheet: each referenced rule row once under its id, then how many Correct rows were written
+        void writeRules(Workbook outputWorkbook, String[] columnNames) {
+            Sheet sheet = outputWorkbook.createSheet("Rules");
+            Row headerRow = sheet.createRow(0);
+            headerRow.createCell(0).setCellValue("Rule Id");
+            for (int c = 0; c < columnNames.length; c++) {
+                headerRow.createCell(c + 1).setCellValue(columnNames[c]);
+            }
+            for (int r = 0; r < rules.size(); r++) {
+                Row ruleRow = sheet.createRow(r + 1);
+                ruleRow.createCell(0).setCellValue(r + 1);
+                String[] values = rules.get(r).values;
+                for (int c = 0; c < values.length; c++) {
+                    ruleRow.createCell(c + 1).setCellValue(values[c]);
                 }
             }
+            if (correctSampleRate > 1) {
+                Row sampleRow = sheet.createRow(rules.size() + 2);
+                sampleRow.createCell(0).setCellValue("Correct rows written " + writtenCorrectRows + " of " + correctRows);
+            }
+        }
+    }
+
+    private static SXSSFWorkbook newOutputWorkbook() {
+        return new SXSSFWorkbook(null, OUTPUT_ROW_WINDOW, COMPRESS_TEMP_FILES);
+    }
 
-            if (isMatch) {
+    private static ValidationResult validateRowAgainstRules(String[] actualValues, List<RuleSet> ruleSets) {
+        RuleSet nearest = null;
+        int fewestMismatches = Integer.MAX_VALUE;
+        int[] failing = new int[actualValues.length];
+        int[] nearestFailing = null;
+        for (RuleSet ruleSet : ruleSets) {
+            int mismatches = countMismatches(ruleSet, actualValues, fewestMismatches, failing);
+            if (mismatches == 0) {
                 return new ValidationResult(true, ruleSet);
             }
+            if (mismatches < fewestMismatches) {
+                nearest = ruleSet;
+                fewestMismatches = mismatches;
+                nearestFailing = Arrays.copyOf(failing, mismatches);
+            }
         }
 
-        if (!ruleSets.isEmpty()) {
-            return new ValidationResult(false, ruleSets.get(ruleSets.size() - 1));
+        if (nearest != null) {
+            return new ValidationResult(nearest, nearestFailing);
         }
 
         return new ValidationResult(false, null);
     }
 
+    private static int countMismatches(RuleSet ruleSet, String[] actualValues, int limit, int[] failing) {
+        int mismatches = 0;
+        for (int c = 0; c < ruleSet.rules.length && mismatches < limit; c++) {
+            if (!validateCellValue(ruleSet.rules[c], actualValues[c])) {
+                failing[mismatches] = c;
+                mismatches++;
+            }
+        }
+        return mismatches;
+    }
+
+    private static String columnNames(int[] columns, String[] columnNames) {
+        StringBuilder names = new StringBuilder();
+        for (int c : columns) {
+            if (names.length() > 0) names.append(", ");
+            names.append(columnNames[c]);
+        }
+        return names.toString();
+    }
+
     private static void copyRow(Row inputRow, Row outputRow) {
         for (int i = 0; i < inputRow.getLastCellNum(); i++) {
             Cell inputCell = inputRow.getCell(i);
@@ -152,24 +384,28 @@ public class ExcelValidator {
         }
     }
 
-    private static void populateRuleRow(Row ruleRow, Row headerRow, Map<String, String> ruleSet) {
-        for (Map.Entry<String, String> rule : ruleSet.entrySet()) {
-            int colIndex = findColumnIndex(headerRow, rule.getKey());
-            ruleRow.createCell(colIndex).setCellValue(rule.getValue());
+    private static void copyCells(Object[] cells, Row outputRow) {
+        for (int i = 0; i < cells.length; i++) {
+            Object value = cells[i];
+            Cell outputCell = outputRow.createCell(i);
+            if (value instanceof String) {
+                outputCell.setCellValue((String) value);
+            } else if (value instanceof Double) {
+                outputCell.setCellValue((Double) value);
+            } else if (value instanceof Boolean) {
+                outputCell.setCellValue((Boolean) value);
+            }
         }
     }
 
-    private static boolean validateCellValue(String expectedValue, String actualValue) {
-        if (expectedValue.equalsIgnoreCase("Not Used")) return true;
-        if (expectedValue.startsWith("<>")) {
-            String[] excludedValues = expectedValue.substring(3, expectedValue.length() - 1).split(",");
-            return Arrays.stream(excludedValues).noneMatch(val -> val.trim().equalsIgnoreCase(actualValue));
+    private static void populateRuleRow(Row ruleRow, ColumnSchema schema, RuleSet ruleSet) {
+        for (int c = 0; c < ruleSet.values.length; c++) {
+            ruleRow.createCell(schema.columnIndexes[c]).setCellValue(ruleSet.values[c]);
         }
-        if (expectedValue.contains(",")) {
-            String[] allowedValues = expectedValue.split(",");
-            return Arrays.stream(allowedValues).anyMatch(val -> val.trim().equalsIgnoreCase(actualValue));
-        }
-        return expectedValue.equalsIgnoreCase(actualValue);
+    }
+
+    private static boolean validateCellValue(CellRule rule, String actualValue) {
+        return rule.matches(actualValue);
     }
 
     private static String getCellValue(Cell cell) {
@@ -181,6 +417,13 @@ public class ExcelValidator {
         }
     }
 
+    private static String getCellValue(Object[] cells, int colIndex) {
+        Object value = colIndex < cells.length ? cells[colIndex] : null;
+        if (value instanceof String) return ((String) value).trim();
+        if (value instanceof Double) return String.valueOf((int) (double) (Double) value);
+        return "";
+    }
+
     private static int findColumnIndex(Row headerRow, String columnName) {
         for (Cell cell : headerRow) {
             if (cell.getStringCellValue().equalsIgnoreCase(columnName)) {
@@ -190,13 +433,231 @@ public class ExcelValidator {
         throw new IllegalArgumentException("Column " + columnName + " not found");
     }
 
+    private static int findColumnIndex(String[] headerNames, String columnName) {
+        for (int i = 0; i < headerNames.length; i++) {
+            if (headerNames[i] != null && headerNames[i].equalsIgnoreCase(columnName)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Column " + columnName + " not found");
+    }
+
     private static class ValidationResult {
         boolean isValid;
-        Map<String, String> matchedRuleRow;
+        RuleSet matchedRuleRow;
+        int[] mismatchedColumns;
 
-        ValidationResult(boolean isValid, Map<String, String> matchedRuleRow) {
+        ValidationResult(boolean isValid, RuleSet matchedRuleRow) {
             this.isValid = isValid;
             this.matchedRuleRow = matchedRuleRow;
         }
+
+        ValidationResult(RuleSet nearestRuleRow, int[] mismatchedColumns) {
+            this(false, nearestRuleRow);
+            this.mismatchedColumns = mismatchedColumns;
+        }
+    }
+
+    private static class RuleBook {
+        String[] columnNames;
+        Map<String, List<RuleSet>> ruleSets = new HashMap<>();
+    }
+
+    private static class RuleSet {
+        String[] values;
+        CellRule[] rules;
+
+        RuleSet(String[] values) {
+            this.values = values;
+            this.rules = new CellRule[values.length];
+            for (int c = 0; c < values.length; c++) {
+                rules[c] = CellRule.compile(values[c]);
+            }
+        }
+    }
+
+    private static class ColumnSchema {
+        int billingCodeIndex;
+        int[] columnIndexes;
+
+        ColumnSchema(Row headerRow, String[] columnNames) {
+            billingCodeIndex = findColumnIndex(headerRow, "BIILING_CODE");
+            columnIndexes = new int[columnNames.length];
+            for (int c = 0; c < columnNames.length; c++) {
+                columnIndexes[c] = findColumnIndex(headerRow, columnNames[c]);
+            }
+        }
+
+        ColumnSchema(String[] headerNames, String[] columnNames) {
+            billingCodeIndex = findColumnIndex(headerNames, "BIILING_CODE");
+            columnIndexes = new int[columnNames.length];
+            for (int c = 0; c < columnNames.length; c++) {
+                columnIndexes[c] = findColumnIndex(headerNames, columnNames[c]);
+            }
+        }
+
+        // Read the rule-relevant cells of a row, aligned to the rule-book columns
+        String[] readValues(Row row) {
+            String[] values = new String[columnIndexes.length];
+            for (int c = 0; c < columnIndexes.length; c++) {
+                values[c] = getCellValue(row.getCell(columnIndexes[c]));
+            }
+            return values;
+        }
+
+        String[] readValues(Object[] cells) {
+            String[] values = new String[columnIndexes.length];
+            for (int c = 0; c < columnIndexes.length; c++) {
+                values[c] = getCellValue(cells, columnIndexes[c]);
+            }
+            return values;
+        }
+    }
+
+    private static class CellRule {
+        enum Kind { ANY, EXACT, ALLOW, DENY }
+
+        Kind kind;
+        String exactValue;
+        Set<String> values;
+
+        CellRule(Kind kind, String exactValue, Set<String> values) {
+            this.kind = kind;
+            this.exactValue = exactValue;
+            this.values = values;
+        }
+
+        static CellRule compile(String expectedValue) {
+            if (expectedValue.equalsIgnoreCase("Not Used")) { // Any value is valid
+                return new CellRule(Kind.ANY, null, null);
+            }
+            if (expectedValue.startsWith("<>")) { // Exclusion rule, e.g. <>(A,B)
+                String excluded = expectedValue.length() > 3 ? expectedValue.substring(3, expectedValue.length() - 1) : "";
+                return new CellRule(Kind.DENY, null, foldAll(excluded.split(",")));
+            }
+            if (expectedValue.contains(",")) { // Multiple values allowed
+                return new CellRule(Kind.ALLOW, null, foldAll(expectedValue.split(",")));
+            }
+            return new CellRule(Kind.EXACT, fold(expectedValue), null); // Exact match
+        }
+
+        boolean matches(String actualValue) {
+            switch (kind) {
+                case ANY: return true;
+                case DENY: return !values.contains(fold(actualValue));
+                case ALLOW: return values.contains(fold(actualValue));
+                default: return exactValue.equals(fold(actualValue));
+            }
+        }
+
+        private static Set<String> foldAll(String[] rawValues) {
+            Set<String> folded = new HashSet<>();
+            for (String value : rawValues) {
+                folded.add(fold(value.trim()));
+            }
+            return folded;
+        }
+
+        private static String fold(String value) {
+            return value.toLowerCase(Locale.ROOT);
+        }
+    }
+
+    private static class SheetRowReader extends DefaultHandler {
+        interface RowHandler {
+            void row(int rowNum, Object[] cells);
+        }
+
+        private final ReadOnlySharedStringsTable sharedStrings;
+        private final RowHandler handler;
+        private final List<Object> cells = new ArrayList<>();
+        private final StringBuilder text = new StringBuilder();
+        private int rowNum = -1;
+        private int colIndex;
+        private String cellType;
+        private boolean hasFormula;
+        private boolean inText;
+
+        SheetRowReader(ReadOnlySharedStringsTable sharedStrings, RowHandler handler) {
+            this.sharedStrings = sharedStrings;
+            this.handler = handler;
+        }
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes attributes) {
+            switch (localName) {
+                case "row":
+                    String r = attributes.getValue("r");
+                    rowNum = r != null ? Integer.parseInt(r) - 1 : rowNum + 1;
+                    cells.clear();
+                    colIndex = -1;
+                    break;
+                case "c":
+                    String ref = attributes.getValue("r");
+                    colIndex = ref != null ? columnIndexOf(ref) : colIndex + 1;
+                    cellType = attributes.getValue("t");
+                    hasFormula = false;
+                    text.setLength(0);
+                    break;
+                case "f":
+                    hasFormula = true;
+                    break;
+                case "v":
+                case "t":
+                    inText = true;
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        @Override
+        public void characters(char[] ch, int start, int length) {
+            if (inText) {
+                text.append(ch, start, length);
+            }
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName) {
+            switch (localName) {
+                case "v":
+                case "t":
+                    inText = false;
+                    break;
+                case "c":
+                    while (cells.size() <= colIndex) {
+                        cells.add(null);
+                    }
+                    cells.set(colIndex, cellValue());
+                    break;
+                case "row":
+                    handler.row(rowNum, cells.toArray());
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        private Object cellValue() {
+            if (hasFormula || text.length() == 0) return "";
+            if (cellType == null || cellType.equals("n")) return Double.parseDouble(text.toString());
+            switch (cellType) {
+                case "s": return sharedStrings.getItemAt(Integer.parseInt(text.toString().trim())).getString();
+                case "inlineStr":
+                case "str": return text.toString();
+                case "b": return text.charAt(0) == '1';
+                default: return "";
+            }
+        }
+
+        // Column index of a cell reference such as "AB12"
+        private static int columnIndexOf(String ref) {
+            int col = 0;
+            for (int i = 0; i < ref.length() && Character.isLetter(ref.charAt(i)); i++) {
+                col = col * 26 + (Character.toUpperCase(ref.charAt(i)) - 'A' + 1);
+            }
+            return col - 1;
+        }
     }
 }
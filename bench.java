@@ -0,0 +1,304 @@
+package validator;
+
+import org.apache.poi.ss.usermodel.*;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+// JMH benchmarks for ExcelValidator (Letssgo.java). JMH generates its harness only for named packages, so both
+// files are in package validator: compile them as validator/ExcelValidator.java and
+// validator/ExcelValidatorBenchmark.java with JMH's annotation processor and POI on the classpath
+public class ExcelValidatorBenchmark {
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(ExcelValidatorBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)  // Allocation rate and GC time next to throughput
+                .build();
+        new Runner(options).run();
+    }
+
+    // Single-cell check against each kind of compiled rule
+    @State(Scope.Benchmark)
+    public static class CellState {
+        @Param({"Not Used", "<>(EUR,USD,GBP)", "EUR,USD,GBP,CHF", "EUR"})
+        public String rule;
+
+        @Param({"EUR", "JPY"})
+        public String value;
+
+        ExcelValidator.CellRule compiledRule;
+
+        @Setup
+        public void setup() {
+            compiledRule = ExcelValidator.CellRule.compile(rule);
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    @Fork(1)
+    @Warmup(iterations = 3, time = 1)
+    @Measurement(iterations = 5, time = 1)
+    public boolean validateCell(CellState state) {
+        return ExcelValidator.validateCellValue(state.compiledRule, state.value);
+    }
+
+    // One row against its billing code's rule sets, with rules and rows generated in memory
+    @State(Scope.Benchmark)
+    public static class RowState {
+        @Param({"10", "100", "500"})
+        public int ruleSetsPerBillingCode;
+
+        @Param({"12", "50"})
+        public int columnCount;
+
+        @Param({"balanced", "exact", "notUsed"})
+        public String ruleMix;
+
+        ExcelValidator.RuleBook rules;
+        String[][] rows;
+        ExcelValidator.RuleIndex[] indexes;
+        int next;
+
+        @Setup
+        public void setup() {
+            SyntheticData data = new SyntheticData(20, ruleSetsPerBillingCode, columnCount, RuleMix.of(ruleMix), 42);
+            rules = data.ruleBook();
+            rows = new String[4096][];
+            indexes = new ExcelValidator.RuleIndex[rows.length];
+            for (int i = 0; i < rows.length; i++) {
+                rows[i] = data.row();
+                indexes[i] = rules.indexes.get(rows[i][0]);
+            }
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    @Fork(1)
+    @Warmup(iterations = 3, time = 1)
+    @Measurement(iterations = 5, time = 1)
+    public Object validateRow(RowState state) {
+        int i = state.next++ & (state.rows.length - 1);
+        return ExcelValidator.validateRowAgainstRules(state.rows[i], state.indexes[i]);
+    }
+
+    // End to end over generated rule-book and Excel B files. Input and output are single sheets of at most
+    // 1,048,576 rows, and the output has about two rows per input row, so rowCount stops at MAX_ROW_COUNT
+    @State(Scope.Benchmark)
+    public static class FileState {
+        static final int MAX_ROW_COUNT = (1_048_576 - 1) / 2; // Header plus input and matched rule rows
+
+        @Param({"10000", "100000", "500000"})
+        public int rowCount;
+
+        @Param({"dom", "stream"})
+        public String inputMode;
+
+        @Param({"100"})
+        public int ruleSetsPerBillingCode;
+
+        @Param({"12"})
+        public int columnCount;
+
+        @Param({"balanced"})
+        public String ruleMix;
+
+        Path directory;
+        String inputFilePath;
+        String outputFilePath;
+        ExcelValidator.RuleBook rules;
+
+        @Setup(Level.Trial)
+        public void setup() throws IOException {
+            if (rowCount > MAX_ROW_COUNT) {
+                throw new IllegalArgumentException("rowCount " + rowCount + " does not fit one output sheet, at most "
+                        + MAX_ROW_COUNT);
+            }
+            directory = Files.createTempDirectory("validator-bench");
+            String ruleFilePath = directory.resolve("rule_book.xlsx").toString();
+            inputFilePath = directory.resolve("excel_b.xlsx").toString();
+            outputFilePath = directory.resolve("output.xlsx").toString();
+
+            SyntheticData data = new SyntheticData(20, ruleSetsPerBillingCode, columnCount, RuleMix.of(ruleMix), 42);
+            data.writeRuleBook(ruleFilePath);
+            data.writeExcelB(inputFilePath, rowCount);
+            rules = ExcelValidator.readRules(ruleFilePath);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            try (java.util.stream.Stream<Path> files = Files.list(directory)) {
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    Files.deleteIfExists(file);
+                }
+            }
+            Files.deleteIfExists(directory);
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Fork(value = 1, jvmArgsAppend = "-Xmx16g")
+    @Warmup(iterations = 1)
+    @Measurement(iterations = 3)
+    public void validateFile(FileState state) throws IOException {
+        if (state.inputMode.equals("stream")) {
+            ExcelValidator.validateAndUpdateExcelBStreaming(state.inputFilePath, state.outputFilePath, state.rules);
+        } else {
+            ExcelValidator.validateAndUpdateExcelB(state.inputFilePath, state.outputFilePath, state.rules);
+        }
+    }
+
+    // Share of "Not Used", <> exclusion and comma-list cells in generated rule sets; the rest are exact values
+    static class RuleMix {
+        double notUsed;
+        double exclusion;
+        double list;
+
+        RuleMix(double notUsed, double exclusion, double list) {
+            this.notUsed = notUsed;
+            this.exclusion = exclusion;
+            this.list = list;
+        }
+
+        static RuleMix of(String name) {
+            switch (name) {
+                case "exact": return new RuleMix(0.0, 0.0, 0.0);
+                case "notUsed": return new RuleMix(0.8, 0.05, 0.05);
+                default: return new RuleMix(0.4, 0.15, 0.2);
+            }
+        }
+    }
+
+    // Seeded rule-book and Excel B generator; most rows are built to satisfy one of their billing code's rule sets
+    static class SyntheticData {
+        static final int VALUES_PER_COLUMN = 12;
+        static final double MATCHING_ROWS = 0.8;
+
+        final String[] columnNames;
+        final List<String[]> ruleRows = new ArrayList<>();
+        final Map<String, List<String[]>> ruleRowsByCode = new HashMap<>();
+        final String[] billingCodes;
+        final Random random;
+
+        SyntheticData(int billingCodeCount, int ruleSetsPerBillingCode, int columnCount, RuleMix mix, long seed) {
+            random = new Random(seed);
+            columnNames = new String[columnCount];
+            columnNames[0] = "BIILING_CODE";
+            for (int c = 1; c < columnCount; c++) {
+                columnNames[c] = "COLUMN_" + c;
+            }
+
+            billingCodes = new String[billingCodeCount];
+            for (int b = 0; b < billingCodeCount; b++) {
+                billingCodes[b] = "BC" + b;
+                for (int r = 0; r < ruleSetsPerBillingCode; r++) {
+                    String[] ruleRow = new String[columnCount];
+                    ruleRow[0] = billingCodes[b];
+                    for (int c = 1; c < columnCount; c++) {
+                        ruleRow[c] = ruleCell(mix);
+                    }
+                    ruleRows.add(ruleRow);
+                    ruleRowsByCode.computeIfAbsent(billingCodes[b], k -> new ArrayList<>()).add(ruleRow);
+                }
+            }
+        }
+
+        private String ruleCell(RuleMix mix) {
+            double kind = random.nextDouble();
+            if (kind < mix.notUsed) return "Not Used";
+            if (kind < mix.notUsed + mix.exclusion) return "<>(" + value() + "," + value() + ")";
+            if (kind < mix.notUsed + mix.exclusion + mix.list) return value() + "," + value() + "," + value();
+            return value();
+        }
+
+        private String value() {
+            return "V" + random.nextInt(VALUES_PER_COLUMN);
+        }
+
+        ExcelValidator.RuleBook ruleBook() {
+            ExcelValidator.RuleBook rules = new ExcelValidator.RuleBook();
+            rules.columnNames = columnNames;
+            for (String[] ruleRow : ruleRows) {
+                rules.ruleSets.computeIfAbsent(ruleRow[0], k -> new ArrayList<>()).add(new ExcelValidator.RuleSet(ruleRow));
+            }
+            rules.buildIndexes();
+            return rules;
+        }
+
+        // Excel B values aligned to the rule-book columns
+        String[] row() {
+            String billingCode = billingCodes[random.nextInt(billingCodes.length)];
+            List<String[]> candidates = ruleRowsByCode.get(billingCode);
+            String[] template = candidates.get(random.nextInt(candidates.size()));
+            boolean matching = random.nextDouble() < MATCHING_ROWS;
+
+            String[] row = new String[columnNames.length];
+            row[0] = billingCode;
+            for (int c = 1; c < row.length; c++) {
+                row[c] = matching ? satisfying(template[c]) : value();
+            }
+            return row;
+        }
+
+        private String satisfying(String rule) {
+            if (rule.equals("Not Used")) return value();
+            if (rule.startsWith("<>")) {
+                Set<String> excluded = new HashSet<>(Arrays.asList(rule.substring(3, rule.length() - 1).split(",")));
+                String value;
+                do {
+                    value = value();
+                } while (excluded.contains(value));
+                return value;
+            }
+            String[] allowed = rule.split(",");
+            return allowed[random.nextInt(allowed.length)];
+        }
+
+        void writeRuleBook(String filePath) throws IOException {
+            writeSheet(filePath, ruleRows.size(), i -> ruleRows.get(i));
+        }
+
+        void writeExcelB(String filePath, int rowCount) throws IOException {
+            writeSheet(filePath, rowCount, i -> row());
+        }
+
+        private void writeSheet(String filePath, int rowCount, java.util.function.IntFunction<String[]> rows) throws IOException {
+            SXSSFWorkbook workbook = new SXSSFWorkbook(null, 1000, true);
+            try (FileOutputStream fos = new FileOutputStream(filePath)) {
+                Sheet sheet = workbook.createSheet("Sheet1");
+                Row headerRow = sheet.createRow(0);
+                for (int c = 0; c < columnNames.length; c++) {
+                    headerRow.createCell(c).setCellValue(columnNames[c]);
+                }
+                for (int i = 0; i < rowCount; i++) {
+                    String[] values = rows.apply(i);
+                    Row row = sheet.createRow(i + 1);
+                    for (int c = 0; c < values.length; c++) {
+                        row.createCell(c).setCellValue(values[c]);
+                    }
+                }
+                workbook.write(fos);
+            } finally {
+                workbook.dispose();
+                workbook.close();
+            }
+        }
+    }
+}
@@ -5,13 +5,18 @@ import java.io.*;
 import java.util.*;
 
 public class ExcelValidator {
+    // Write each input row once with the id of its matched rule row, listed once on a "Rules" sheet, instead of
+    // following it with a copy of that rule row; correctSampleRate N keeps every Nth Correct row and drops the rest
+    private static final boolean COMPACT_REPORT = Boolean.getBoolean("validator.compactReport");
+    private static final int CORRECT_SAMPLE_RATE = Integer.getInteger("validator.correctSampleRate", 1);
+
     public static void main(String[] args) {
         String ruleFilePath = "path_to_rule_book.xlsx";
         String inputFilePath = "path_to_excel_b.xlsx";
         String outputFilePath = "output_excel_b.xlsx";
 
         try {
-            Map<String, List<Map<String, String>>> rules = readRules(ruleFilePath);
+            RuleBook rules = readRules(ruleFilePath);
             validateAndUpdateExcelB(inputFilePath, outputFilePath, rules);
             System.out.println("Validation completed. Results saved to: " + outputFilePath);
         } catch (Exception e) {
@@ -19,9 +24,9 @@ public class ExcelValidator {
         }
     }
 
-    // Read Rule Book and store as Map<String, List<Map<String, String>>>
-    private static Map<String, List<Map<String, String>>> readRules(String filePath) throws IOException {
-        Map<String, List<Map<String, String>>> rules = new HashMap<>();
+    // Read Rule Book and store rule sets per billing code
+    private static RuleBook readRules(String filePath) throws IOException {
+        RuleBook rules = new RuleBook();
 
         try (FileInputStream fis = new FileInputStream(filePath);
              Workbook workbook = new XSSFWorkbook(fis)) {
@@ -29,25 +34,31 @@ public class ExcelValidator {
             Sheet sheet = workbook.getSheetAt(0);
             Row headerRow = sheet.getRow(0);
 
-            List<String> columnNames = new ArrayList<>();
+            Set<String> columnNames = new LinkedHashSet<>();
             for (Cell cell : headerRow) {
                 columnNames.add(cell.getStringCellValue());
             }
+            rules.columnNames = columnNames.toArray(new String[0]);
+
+            // Resolve rule-book column positions once
+            int billingCodeIndex = findColumnIndex(headerRow, "BIILING_CODE");
+            int[] colIndexes = new int[rules.columnNames.length];
+            for (int c = 0; c < colIndexes.length; c++) {
+                colIndexes[c] = findColumnIndex(headerRow, rules.columnNames[c]);
+            }
 
             for (int i = 1; i <= sheet.getLastRowNum(); i++) {
                 Row row = sheet.getRow(i);
                 if (row == null) continue;
 
-                String billingCode = getCellValue(row.getCell(findColumnIndex(headerRow, "BIILING_CODE")));
-                Map<String, String> ruleSet = new HashMap<>();
+                String billingCode = getCellValue(row.getCell(billingCodeIndex));
+                String[] ruleValues = new String[colIndexes.length];
 
-                for (String columnName : columnNames) {
-                    int colIndex = findColumnIndex(headerRow, columnName);
-                    String cellValue = getCellValue(row.getCell(colIndex));
-                    ruleSet.put(columnName, cellValue);
+                for (int c = 0; c < colIndexes.length; c++) {
+                    ruleValues[c] = getCellValue(row.getCell(colIndexes[c]));
                 }
 
-                rules.computeIfAbsent(billingCode, k -> new ArrayList<>()).add(ruleSet);
+                rules.ruleSets.computeIfAbsent(billingCode, k -> new ArrayList<>()).add(new RuleSet(ruleValues));
             }
         }
         return rules;
@@ -55,7 +66,7 @@ public class ExcelValidator {
 
     // Validate Excel B and update with results
     private static void validateAndUpdateExcelB(String inputFilePath, String outputFilePath,
-                                                Map<String, List<Map<String, String>>> rules) throws IOException {
+                                                RuleBook rules) throws IOException {
         try (FileInputStream fis = new FileInputStream(inputFilePath);
              Workbook inputWorkbook = new XSSFWorkbook(fis);
              Workbook outputWorkbook = new XSSFWorkbook()) {
@@ -63,7 +74,7 @@ public class ExcelValidator {
             Sheet inputSheet = inputWorkbook.getSheetAt(0);
             Sheet outputSheet = outputWorkbook.createSheet("Validation Results");
 
-            // Copy header row to the output file and add "Validation Result" column
+            // Copy header row to the output file and add "Validation Result" and "Mismatched Columns" columns
             Row inputHeaderRow = inputSheet.getRow(0);
             Row outputHeaderRow = outputSheet.createRow(0);
             for (int i = 0; i < inputHeaderRow.getLastCellNum(); i++) {
@@ -74,6 +85,12 @@ public class ExcelValidator {
                 }
             }
             outputHeaderRow.createCell(inputHeaderRow.getLastCellNum()).setCellValue("Validation Result");
+            outputHeaderRow.createCell(inputHeaderRow.getLastCellNum() + 1).setCellValue("Mismatched Columns");
+            if (COMPACT_REPORT) outputHeaderRow.createCell(inputHeaderRow.getLastCellNum() + 2).setCellValue("Rule Id");
+
+            // Resolve rule-book columns against the Excel B header once
+            ColumnSchema schema = new ColumnSchema(inputHeaderRow, rules.columnNames);
+            CompactReport compactReport = COMPACT_REPORT ? new CompactReport(CORRECT_SAMPLE_RATE) : null;
 
             // Process each row
             int outputRowIndex = 1;
@@ -81,24 +98,36 @@ public class ExcelValidator {
                 Row inputRow = inputSheet.getRow(i);
                 if (inputRow == null) continue;
 
-                String billingCode = getCellValue(inputRow.getCell(findColumnIndex(inputHeaderRow, "BIILING_CODE")));
-                List<Map<String, String>> ruleSets = rules.getOrDefault(billingCode, new ArrayList<>());
+                String billingCode = getCellValue(inputRow.getCell(schema.billingCodeIndex));
+                List<RuleSet> ruleSets = rules.ruleSets.getOrDefault(billingCode, Collections.emptyList());
 
                 // Validate row and add to output
-                ValidationResult result = validateRowAgainstRules(inputRow, inputHeaderRow, ruleSets);
+                ValidationResult result = validateRowAgainstRules(schema.readValues(inputRow), ruleSets);
+                if (compactReport != null && !compactReport.includes(result)) continue;
 
                 // Add the original input row to the output file with validation result
                 Row outputRow = outputSheet.createRow(outputRowIndex++);
                 copyRow(inputRow, outputRow);
                 outputRow.createCell(inputHeaderRow.getLastCellNum()).setCellValue(result.isValid ? "Correct" : "Wrong");
+                if (result.mismatchedColumns != null) {
+                    outputRow.createCell(inputHeaderRow.getLastCellNum() + 1)
+                            .setCellValue(columnNames(result.mismatchedColumns, rules.columnNames));
+                }
 
-                // Add the matched rule row if available
-                if (result.matchedRuleRow != null) {
+                // Add the matched rule row, or for a Wrong row the nearest one, if available; a compact report
+                // refers to it by id instead
+                if (compactReport != null) {
+                    if (result.matchedRuleRow != null) {
+                        outputRow.createCell(inputHeaderRow.getLastCellNum() + 2)
+                                .setCellValue(compactReport.ruleId(result.matchedRuleRow));
+                    }
+                } else if (result.matchedRuleRow != null) {
                     Row ruleRow = outputSheet.createRow(outputRowIndex++);
-                    populateRuleRowWithExtraColumns(ruleRow, inputRow, inputHeaderRow, result.matchedRuleRow);
+                    populateRuleRowWithExtraColumns(ruleRow, inputRow, inputHeaderRow, schema, result.matchedRuleRow);
                     ruleRow.createCell(inputHeaderRow.getLastCellNum()).setCellValue(result.isValid ? "Correct" : "Wrong");
                 }
             }
+            if (compactReport != null) compactReport.writeRules(outputWorkbook, rules.columnNames);
 
             // Save the updated Excel file
             try (FileOutputStream fos = new FileOutputStream(outputFilePath)) {
@@ -107,47 +136,127 @@ public class ExcelValidator {
         }
     }
 
+    // Matched rule rows of a compact report, numbered from 1 in the order rows first match them, and the
+    // sampling of Correct rows
+    private static class CompactReport {
+        final int correctSampleRate;
+        final Map<RuleSet, Integer> ruleIds = new IdentityHashMap<>();
+        final List<RuleSet> rules = new ArrayList<>(); // By rule id - 1
+        long correctRows;
+        long writtenCorrectRows;
+
+        CompactReport(int correctSampleRate) {
+            this.correctSampleRate = Math.max(correctSampleRate, 1);
+        }
+
+        // Wrong rows are always written, Correct ones the first of every correctSampleRate
+        boolean includes(ValidationResult result) {
+            if (!result.isValid) return true;
+            if (correctRows++ % correctSampleRate != 0) return false;
+            writtenCorrectRows++;
+            return true;
+        }
+
+        int ruleId(RuleSet ruleSet) {
+            Integer ruleId = ruleIds.get(ruleSet);
+            if (ruleId == null) {
+                rules.add(ruleSet);
+                ruleId = rules.size();
+                ruleIds.put(ruleSet, ruleId);
+            }
+            return ruleId;
+        }
+
+        // "Rules" sheet: each referenced rule row once under its id, then how many Correct rows were written
+        void writeRules(Workbook outputWorkbook, String[] columnNames) {
+            Sheet sheet = outputWorkbook.createSheet("Rules");
+            Row headerRow = sheet.createRow(0);
+            headerRow.createCell(0).setCellValue("Rule Id");
+            for (int c = 0; c < columnNames.length; c++) {
+                headerRow.createCell(c + 1).setCellValue(columnNames[c]);
+            }
+            for (int r = 0; r < rules.size(); r++) {
+                Row ruleRow = sheet.createRow(r + 1);
+                ruleRow.createCell(0).setCellValue(r + 1);
+                String[] values = rules.get(r).values;
+                for (int c = 0; c < values.length; c++) {
+                    ruleRow.createCell(c + 1).setCellValue(values[c]);
+                }
+            }
+            if (correctSampleRate > 1) {
+                Row sampleRow = sheet.createRow(rules.size() + 2);
+                sampleRow.createCell(0).setCellValue("Correct rows written " + writtenCorrectRows + " of " + correctRows);
+            }
+        }
+    }
+
     // Validation result structure
     private static class ValidationResult {
         boolean isValid;
-        Map<String, String> matchedRuleRow;
+        RuleSet matchedRuleRow;    // For a Wrong row, the rule set with the fewest failing columns
+        int[] mismatchedColumns;   // For a Wrong row, the rule-book columns failing matchedRuleRow
 
-        ValidationResult(boolean isValid, Map<String, String> matchedRuleRow) {
+        ValidationResult(boolean isValid, RuleSet matchedRuleRow) {
             this.isValid = isValid;
             this.matchedRuleRow = matchedRuleRow;
         }
+
+        ValidationResult(RuleSet nearestRuleRow, int[] mismatchedColumns) {
+            this(false, nearestRuleRow);
+            this.mismatchedColumns = mismatchedColumns;
+        }
     }
 
     // Validate a single row against multiple rule sets
-    private static ValidationResult validateRowAgainstRules(Row row, Row headerRow, List<Map<String, String>> ruleSets) {
-        for (Map<String, String> ruleSet : ruleSets) {
-            boolean isMatch = true;
-
-            for (Map.Entry<String, String> rule : ruleSet.entrySet()) {
-                String columnName = rule.getKey();
-                String expectedValue = rule.getValue();
-                int colIndex = findColumnIndex(headerRow, columnName);
-                String actualValue = getCellValue(row.getCell(colIndex));
-
-                if (!validateCellValue(expectedValue, actualValue)) {
-                    isMatch = false;
-                    break;
-                }
-            }
-
-            if (isMatch) {
+    private static ValidationResult validateRowAgainstRules(String[] actualValues, List<RuleSet> ruleSets) {
+        // Failing columns are counted only until a set is no better than the nearest one so far. A set only
+        // becomes the nearest when it was counted to its last column, so the columns recorded for it are complete.
+        RuleSet nearest = null;
+        int fewestMismatches = Integer.MAX_VALUE;
+        int[] failing = new int[actualValues.length];
+        int[] nearestFailing = null;
+        for (RuleSet ruleSet : ruleSets) {
+            int mismatches = countMismatches(ruleSet, actualValues, fewestMismatches, failing);
+            if (mismatches == 0) {
                 return new ValidationResult(true, ruleSet);
             }
+            if (mismatches < fewestMismatches) {
+                nearest = ruleSet;
+                fewestMismatches = mismatches;
+                nearestFailing = Arrays.copyOf(failing, mismatches);
+            }
         }
 
-        // If no rule matches, include the last rule set
-        if (!ruleSets.isEmpty()) {
-            return new ValidationResult(false, ruleSets.get(ruleSets.size() - 1));
+        // If no rule matches, include the rule set with the fewest failing columns
+        if (nearest != null) {
+            return new ValidationResult(nearest, nearestFailing);
         }
 
         return new ValidationResult(false, null);
     }
 
+    // Failing columns of the rule set, counted up to limit and recorded in failing
+    private static int countMismatches(RuleSet ruleSet, String[] actualValues, int limit, int[] failing) {
+        int mismatches = 0;
+        for (int c = 0; c < ruleSet.rules.length && mismatches < limit; c++) {
+            if (!validateCellValue(ruleSet.rules[c], actualValues[c])) {
+                failing[mismatches] = c;
+                mismatches++;
+            }
+        }
+        return mismatches;
+    }
+
+    // Rule-book column names, e.g. "CURRENCY, FINAL MOP"
+    private static String columnNames(int[] columns, String[] columnNames) {
+        StringBuilder names = new StringBuilder();
+        for (int c : columns) {
+            if (names.length() > 0) names.append(", ");
+            names.append(columnNames[c]);
+        }
+        return names.toString();
+    }
+
     // Copy row from input to output
     private static void copyRow(Row inputRow, Row outputRow) {
         for (int i = 0; i < inputRow.getLastCellNum(); i++) {
@@ -172,10 +281,9 @@ public class ExcelValidator {
     }
 
     // Populate rule row with extra columns from input
-    private static void populateRuleRowWithExtraColumns(Row ruleRow, Row inputRow, Row headerRow, Map<String, String> ruleSet) {
-        for (Map.Entry<String, String> rule : ruleSet.entrySet()) {
-            int colIndex = findColumnIndex(headerRow, rule.getKey());
-            ruleRow.createCell(colIndex).setCellValue(rule.getValue());
+    private static void populateRuleRowWithExtraColumns(Row ruleRow, Row inputRow, Row headerRow, ColumnSchema schema, RuleSet ruleSet) {
+        for (int c = 0; c < ruleSet.values.length; c++) {
+            ruleRow.createCell(schema.columnIndexes[c]).setCellValue(ruleSet.values[c]);
         }
 
         // Copy extra columns from input row
@@ -200,18 +308,9 @@ public class ExcelValidator {
         }
     }
 
-    // Validate cell value based on rule
-    private static boolean validateCellValue(String expectedValue, String actualValue) {
-        if (expectedValue.equalsIgnoreCase("Not Used")) return true; // Any value is valid
-        if (expectedValue.startsWith("<>")) { // Exclusion rule
-            String[] excludedValues = expectedValue.substring(3, expectedValue.length() - 1).split(",");
-            return Arrays.stream(excludedValues).noneMatch(val -> val.trim().equalsIgnoreCase(actualValue));
-        }
-        if (expectedValue.contains(",")) { // Multiple values allowed
-            String[] allowedValues = expectedValue.split(",");
-            return Arrays.stream(allowedValues).anyMatch(val -> val.trim().equalsIgnoreCase(actualValue));
-        }
-        return expectedValue.equalsIgnoreCase(actualValue); // Exact match
+    // Validate cell value against its compiled rule
+    private static boolean validateCellValue(CellRule rule, String actualValue) {
+        return rule.matches(actualValue);
     }
 
     // Helper method to get cell value as String
@@ -233,4 +332,97 @@ public class ExcelValidator {
         }
         throw new IllegalArgumentException("Column " + columnName + " not found");
     }
+
+    // Rule book: column names in rule-book order and rule sets per billing code
+    private static class RuleBook {
+        String[] columnNames;
+        Map<String, List<RuleSet>> ruleSets = new HashMap<>();
+    }
+
+    // Rule book row: raw values for the output plus the compiled rules, aligned to RuleBook.columnNames
+    private static class RuleSet {
+        String[] values;
+        CellRule[] rules;
+
+        RuleSet(String[] values) {
+            this.values = values;
+            this.rules = new CellRule[values.length];
+            for (int c = 0; c < values.length; c++) {
+                rules[c] = CellRule.compile(values[c]);
+            }
+        }
+    }
+
+    // Rule-book columns resolved once against the Excel B header row
+    private static class ColumnSchema {
+        int billingCodeIndex;
+        int[] columnIndexes;
+
+        ColumnSchema(Row headerRow, String[] columnNames) {
+            billingCodeIndex = findColumnIndex(headerRow, "BIILING_CODE");
+            columnIndexes = new int[columnNames.length];
+            for (int c = 0; c < columnNames.length; c++) {
+                columnIndexes[c] = findColumnIndex(headerRow, columnNames[c]);
+            }
+        }
+
+        // Read the rule-relevant cells of a row, aligned to the rule-book columns
+        String[] readValues(Row row) {
+            String[] values = new String[columnIndexes.length];
+            for (int c = 0; c < columnIndexes.length; c++) {
+                values[c] = getCellValue(row.getCell(columnIndexes[c]));
+            }
+            return values;
+        }
+    }
+
+    // Rule cell compiled once when the rule book is read
+    private static class CellRule {
+        enum Kind { ANY, EXACT, ALLOW, DENY }
+
+        Kind kind;
+        String exactValue;
+        Set<String> values;
+
+        CellRule(Kind kind, String exactValue, Set<String> values) {
+            this.kind = kind;
+            this.exactValue = exactValue;
+            this.values = values;
+        }
+
+        static CellRule compile(String expectedValue) {
+            if (expectedValue.equalsIgnoreCase("Not Used")) { // Any value is valid
+                return new CellRule(Kind.ANY, null, null);
+            }
+            if (expectedValue.startsWith("<>")) { // Exclusion rule, e.g. <>(A,B)
+                String excluded = expectedValue.length() > 3 ? expectedValue.substring(3, expectedValue.length() - 1) : "";
+                return new CellRule(Kind.DENY, null, foldAll(excluded.split(",")));
+            }
+            if (expectedValue.contains(",")) { // Multiple values allowed
+                return new CellRule(Kind.ALLOW, null, foldAll(expectedValue.split(",")));
+            }
+            return new CellRule(Kind.EXACT, fold(expectedValue), null); // Exact match
+        }
+
+        boolean matches(String actualValue) {
+            switch (kind) {
+                case ANY: return true;
+                case DENY: return !values.contains(fold(actualValue));
+                case ALLOW: return values.contains(fold(actualValue));
+                default: return exactValue.equals(fold(actualValue));
+            }
+        }
+
+        private static Set<String> foldAll(String[] rawValues) {
+            Set<String> folded = new HashSet<>();
+            for (String value : rawValues) {
+                folded.add(fold(value.trim()));
+            }
+            return folded;
+        }
+
+        private static String fold(String value) {
+            return value.toLowerCase(Locale.ROOT);
+        }
+    }
 }
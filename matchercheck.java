@@ -0,0 +1,134 @@
+package validator;
+
+import java.util.*;
+
+// Differential check of the generated rule matchers of ExcelValidator (Letssgo.java): the same seeded rule books are
+// loaded twice, once matched by the interpreted loop and once with MatcherCompiler chains, and every generated row
+// must get the same result, matched rule set and failing columns from both. Compile both files together as
+// validator/ExcelValidator.java and validator/GeneratedMatcherCheck.java with POI on the classpath; the exit
+// status is 1 when any row differs.
+//
+//     java validator.GeneratedMatcherCheck [rule books] [rows per rule book]
+public class GeneratedMatcherCheck {
+    static final String[] RULE_KINDS = {"notUsed", "exact", "list", "exclusion", "range", "prefix", "regex"};
+    static final int VALUES_PER_COLUMN = 10;
+
+    public static void main(String[] args) {
+        int ruleBooks = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        int rowsPerRuleBook = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+
+        long rows = 0;
+        long wrongRows = 0;
+        long differences = 0;
+        for (int seed = 0; seed < ruleBooks; seed++) {
+            Random random = new Random(seed);
+            int columnCount = 2 + random.nextInt(10);
+            int ruleSetsPerBillingCode = 1 + random.nextInt(ExcelValidator.MatcherCompiler.MAX_RULE_SETS);
+            List<String[]> ruleRows = ruleRows(random, 5, ruleSetsPerBillingCode, columnCount);
+
+            ExcelValidator.RuleBook interpreted = ruleBook(ruleRows, columnCount);
+            ExcelValidator.RuleBook generated = ruleBook(ruleRows, columnCount);
+            ExcelValidator.MatcherCompiler.compile(generated);
+
+            for (int i = 0; i < rowsPerRuleBook; i++) {
+                String[] row = row(random, ruleRows, columnCount);
+                ExcelValidator.ValidationResult expected = ExcelValidator.validateRowAgainstRules(row,
+                        interpreted.indexes.getOrDefault(row[0], ExcelValidator.RuleIndex.EMPTY));
+                ExcelValidator.ValidationResult actual = ExcelValidator.validateRowAgainstRules(row,
+                        generated.indexes.getOrDefault(row[0], ExcelValidator.RuleIndex.EMPTY));
+                rows++;
+                if (!expected.isValid) wrongRows++;
+                if (!sameResult(expected, actual)) {
+                    differences++;
+                    if (differences <= 10) {
+                        System.err.println("Rule book " + seed + ", row " + Arrays.toString(row) + ": interpreted "
+                                + describe(expected) + ", generated " + describe(actual));
+                    }
+                }
+            }
+        }
+
+        System.out.println(rows + " rows (" + wrongRows + " Wrong) over " + ruleBooks + " rule books, "
+                + differences + " differences");
+        if (differences > 0) System.exit(1);
+    }
+
+    // Rule-book rows per billing code, mixing every rule kind
+    static List<String[]> ruleRows(Random random, int billingCodes, int ruleSetsPerBillingCode, int columnCount) {
+        List<String[]> ruleRows = new ArrayList<>();
+        for (int b = 0; b < billingCodes; b++) {
+            for (int r = 0; r < ruleSetsPerBillingCode; r++) {
+                String[] ruleRow = new String[columnCount];
+                ruleRow[0] = "BC" + b;
+                for (int c = 1; c < columnCount; c++) {
+                    ruleRow[c] = ruleCell(random);
+                }
+                ruleRows.add(ruleRow);
+            }
+        }
+        return ruleRows;
+    }
+
+    static String ruleCell(Random random) {
+        switch (RULE_KINDS[random.nextInt(RULE_KINDS.length)]) {
+            case "notUsed": return "Not Used";
+            case "list": return value(random) + "," + value(random) + "," + value(random);
+            case "exclusion": return "<>(" + value(random) + "," + value(random) + ")";
+            case "range": return random.nextBoolean() ? ">=" + random.nextInt(VALUES_PER_COLUMN)
+                    : random.nextInt(5) + ".." + (5 + random.nextInt(5));
+            case "prefix": return "V" + random.nextInt(VALUES_PER_COLUMN) + "*";
+            case "regex": return "re:V[0-" + random.nextInt(VALUES_PER_COLUMN) + "]";
+            default: return value(random);
+        }
+    }
+
+    // Values are "V<n>" or, for range rules to see, plain numbers
+    static String value(Random random) {
+        int n = random.nextInt(VALUES_PER_COLUMN);
+        return random.nextInt(4) == 0 ? String.valueOf(n) : "V" + n;
+    }
+
+    // Half the rows copy a rule row's exact cells, so they come close to matching; the rest are random
+    static String[] row(Random random, List<String[]> ruleRows, int columnCount) {
+        String[] template = ruleRows.get(random.nextInt(ruleRows.size()));
+        boolean close = random.nextBoolean();
+        String[] row = new String[columnCount];
+        row[0] = random.nextInt(20) == 0 ? "BC_UNKNOWN" : template[0];
+        for (int c = 1; c < columnCount; c++) {
+            boolean exact = !template[c].contains(",") && !template[c].contains("*") && !template[c].startsWith("<>")
+                    && !template[c].startsWith("re:") && !template[c].contains("..") && !template[c].startsWith(">")
+                    && !template[c].equals("Not Used");
+            row[c] = close && exact ? template[c] : value(random);
+        }
+        return row;
+    }
+
+    static ExcelValidator.RuleBook ruleBook(List<String[]> ruleRows, int columnCount) {
+        ExcelValidator.RuleBook rules = new ExcelValidator.RuleBook();
+        rules.columnNames = new String[columnCount];
+        rules.columnNames[0] = "BIILING_CODE";
+        for (int c = 1; c < columnCount; c++) {
+            rules.columnNames[c] = "COLUMN_" + c;
+        }
+        for (String[] ruleRow : ruleRows) {
+            rules.ruleSets.computeIfAbsent(ruleRow[0], k -> new ArrayList<>()).add(new ExcelValidator.RuleSet(ruleRow));
+        }
+        rules.buildIndexes();
+        return rules;
+    }
+
+    static boolean sameResult(ExcelValidator.ValidationResult expected, ExcelValidator.ValidationResult actual) {
+        return expected.isValid == actual.isValid
+                && position(expected.matchedRuleRow) == position(actual.matchedRuleRow)
+                && Arrays.equals(expected.mismatchedColumns, actual.mismatchedColumns);
+    }
+
+    static int position(ExcelValidator.RuleSet ruleSet) {
+        return ruleSet != null ? ruleSet.position : -1;
+    }
+
+    static String describe(ExcelValidator.ValidationResult result) {
+        return (result.isValid ? "Correct" : "Wrong") + " with rule set " + position(result.matchedRuleRow)
+                + " failing " + Arrays.toString(result.mismatchedColumns);
+    }
+}
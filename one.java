@@ -1,12 +1,23 @@
+package validator;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipFile;
 import org.apache.poi.ss.usermodel.*;
+import org.apache.poi.xssf.usermodel.XSSFSheet;
 import org.apache.poi.xssf.usermodel.XSSFWorkbook;
 
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.IOException;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
 import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public class ExcelValidatorWithMultipleValues {
+    // Vector API kernel from vectormask.java when that file was compiled in and jdk.incubator.vector is
+    // available; -Dvalidator.vectorMasks=false forces the scalar kernel
+    static final RowMaskKernel ROW_MASK_KERNEL = loadRowMaskKernel();
 
     public static void main(String[] args) throws IOException {
         String rulesFilePath = "ExcelA.xlsx"; // Replace with your rules file
@@ -72,56 +83,39 @@ public class ExcelValidatorWithMultipleValues {
     }
 
     private static void validateAndWriteResults(String filePath, Map<String, Map<String, List<String>>> rules) throws IOException {
+        String sheetPartName;
+        int resultColIndex;
+        String[] results;
+
         try (FileInputStream fis = new FileInputStream(filePath);
-             Workbook workbook = new XSSFWorkbook(fis);
-             FileOutputStream fos = new FileOutputStream(filePath)) {
+             XSSFWorkbook workbook = new XSSFWorkbook(fis)) {
 
-            Sheet sheet = workbook.getSheetAt(0);
+            XSSFSheet sheet = workbook.getSheetAt(0);
             Row headerRow = sheet.getRow(0);
+            sheetPartName = sheet.getPackagePart().getPartName().getName();
 
-            // Add a new column for the validation result
-            int resultColIndex = headerRow.getPhysicalNumberOfCells();
-            headerRow.createCell(resultColIndex).setCellValue("Result");
-
-            for (int i = 1; i <= sheet.getLastRowNum(); i++) {
-                Row row = sheet.getRow(i);
-                if (row == null) continue;
-
-                boolean isValid = true;  // Initially assume the row is valid
-                StringBuilder validationResult = new StringBuilder();
+            // Add a new column for the validation result, right of every existing cell
+            resultColIndex = headerRow.getLastCellNum();
+            results = new String[sheet.getLastRowNum() + 1];
+            results[headerRow.getRowNum()] = "Result";
 
-                // Validate each column using the rules from Excel A
-                for (String columnName : rules.keySet()) {
-                    String columnValue = getCellValue(row.getCell(findColumnIndex(headerRow, columnName)));  // Get column value safely
-                    Map<String, List<String>> validValues = rules.get(columnName);
+            // Resolve rule columns once for the whole sheet
+            ColumnSchema schema = new ColumnSchema(headerRow, rules);
 
-                    // Handle multiple values in a cell
-                    List<String> valuesToValidate = Arrays.asList(columnValue.split(","));
-                    boolean columnValid = true;
-
-                    // Check if at least one value is incorrect
-                    for (String value : valuesToValidate) {
-                        if (!validateColumn(value.trim(), validValues, columnName)) {
-                            columnValid = false;
-                            break;  // If one value is invalid, we can stop checking
-                        }
-                    }
-
-                    if (!columnValid) {
-                        isValid = false;  // If any column is invalid, the whole row is invalid
-                        validationResult.append("Wrong;");
-                    } else {
-                        validationResult.append("Correct;");
-                    }
-                }
+            // Each distinct value of a rule column is validated once; a row is valid if it is valid in every column
+            EncodedColumns encoded = new EncodedColumns(sheet, schema);
+            BitSet validRows = BitSet.valueOf(encoded.validRows());
 
+            for (int r = 0; r < encoded.rows.size(); r++) {
                 // Set the validation result in the new column
-                row.createCell(resultColIndex).setCellValue(isValid ? "Correct" : "Wrong");
+                Row row = encoded.rows.get(r);
+                resultColIndex = Math.max(resultColIndex, row.getLastCellNum());
+                results[row.getRowNum()] = validRows.get(r) ? "Correct" : "Wrong";
             }
-
-            // Write the updated workbook to the same file
-            workbook.write(fos);
         }
+
+        // Write the results into the same file, rewriting only the sheet XML
+        ResultColumnWriter.append(Paths.get(filePath), sheetPartName, resultColIndex, results);
     }
 
     private static String getCellValue(Cell cell) {
@@ -140,20 +134,31 @@ public class ExcelValidatorWithMultipleValues {
         }
     }
 
-    private static boolean validateColumn(String columnValue, Map<String, List<String>> validValues, String columnName) {
-        // Handle "Not Used" Case: Any value is valid
-        if ("Not Used".equalsIgnoreCase(columnValue)) {
-            return true;
+    // A cell with multiple values is valid only if all of them are valid. Values are walked as trimmed
+    // character ranges and looked up without substrings; like split(","), trailing empty values are dropped
+    private static boolean isValidCell(String columnValue, ColumnRules rules) {
+        int end = columnValue.length();
+        if (end == 0) {
+            return rules.isValid(columnValue, 0, 0);
         }
-
-        // Handle "<>" Exclusion Rule
-        List<String> excludedValues = validValues.get(columnName);
-        if (excludedValues != null && !excludedValues.isEmpty()) {
-            return !excludedValues.contains(columnValue);  // Valid if the value is not in the exclusion list
+        while (end > 0 && columnValue.charAt(end - 1) == ',') {
+            end--;
         }
-
-        // If it's a valid value in the rule book
-        return validValues.containsKey(columnValue);
+        for (int start = 0; start < end; ) {
+            int comma = columnValue.indexOf(',', start);
+            if (comma < 0 || comma > end) {
+                comma = end;
+            }
+            int from = start;
+            int to = comma;
+            while (from < to && columnValue.charAt(from) <= ' ') from++;  // Same trimming as String.trim
+            while (to > from && columnValue.charAt(to - 1) <= ' ') to--;
+            if (!rules.isValid(columnValue, from, to)) {
+                return false;  // If one value is invalid, we can stop checking
+            }
+            start = comma + 1;
+        }
+        return true;
     }
 
     private static int findColumnIndex(Row headerRow, String columnName) {
@@ -164,4 +169,410 @@ public class ExcelValidatorWithMultipleValues {
         }
         throw new IllegalArgumentException("Column " + columnName + " not found");
     }
+
+    // Rule columns resolved once against the Excel B header row
+    private static class ColumnSchema {
+        String[] columnNames;
+        int[] columnIndexes;
+        ColumnRules[] columnRules;
+
+        ColumnSchema(Row headerRow, Map<String, Map<String, List<String>>> rules) {
+            columnNames = rules.keySet().toArray(new String[0]);
+            columnIndexes = new int[columnNames.length];
+            columnRules = new ColumnRules[columnNames.length];
+            for (int c = 0; c < columnNames.length; c++) {
+                columnIndexes[c] = findColumnIndex(headerRow, columnNames[c]);
+                columnRules[c] = new ColumnRules(rules.get(columnNames[c]), columnNames[c]);
+            }
+        }
+    }
+
+    // One column's rules compiled for isValidCell; values are passed as a character range of the cell
+    private static class ColumnRules {
+        CharRangeSet allowedValues;
+        CharRangeSet excludedValues;  // Null unless the column has a "<>" exclusion
+
+        ColumnRules(Map<String, List<String>> validValues, String columnName) {
+            allowedValues = new CharRangeSet(validValues.keySet());
+            List<String> excluded = validValues.get(columnName);
+            excludedValues = excluded != null && !excluded.isEmpty() ? new CharRangeSet(excluded) : null;
+        }
+
+        boolean isValid(String text, int start, int end) {
+            // Handle "Not Used" Case: Any value is valid
+            if (end - start == 8 && text.regionMatches(true, start, "Not Used", 0, 8)) {
+                return true;
+            }
+
+            // Handle "<>" Exclusion Rule
+            if (excludedValues != null) {
+                return !excludedValues.contains(text, start, end);  // Valid if the value is not in the exclusion list
+            }
+
+            // If it's a valid value in the rule book
+            return allowedValues.contains(text, start, end);
+        }
+    }
+
+    // Open-addressing string set that can look up a range of a longer string without copying it out
+    private static class CharRangeSet {
+        String[] table;
+
+        CharRangeSet(Collection<String> values) {
+            table = new String[Integer.highestOneBit(Math.max(values.size(), 2) * 4 - 1)];
+            for (String value : values) {
+                add(value);
+            }
+        }
+
+        private void add(String value) {
+            int mask = table.length - 1;
+            for (int slot = spread(value.hashCode()) & mask; ; slot = (slot + 1) & mask) {
+                if (table[slot] == null) {
+                    table[slot] = value;
+                    return;
+                }
+                if (table[slot].equals(value)) {
+                    return;
+                }
+            }
+        }
+
+        boolean contains(String text, int start, int end) {
+            int hash = 0;
+            for (int i = start; i < end; i++) {
+                hash = 31 * hash + text.charAt(i);  // Same as String.hashCode over the range
+            }
+            int length = end - start;
+            int mask = table.length - 1;
+            for (int slot = spread(hash) & mask; table[slot] != null; slot = (slot + 1) & mask) {
+                String value = table[slot];
+                if (value.length() == length && value.regionMatches(0, text, start, length)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static int spread(int hash) {
+            return hash ^ (hash >>> 16);
+        }
+    }
+
+    // Rule columns of Excel B, dictionary-encoded: each distinct cell value gets an id per column and is
+    // checked against the rules once, so validation work grows with distinct values rather than rows
+    private static class EncodedColumns {
+        List<Row> rows = new ArrayList<>();
+        int[][] valueIds;        // Per column, the value id of each row
+        BitSet[] validValueIds;  // Per column, the ids of values that pass its rules
+        int[] valueCounts;       // Per column, the number of distinct values
+
+        EncodedColumns(Sheet sheet, ColumnSchema schema) {
+            int columnCount = schema.columnNames.length;
+            List<Map<String, Integer>> dictionaries = new ArrayList<>();
+            valueIds = new int[columnCount][Math.max(sheet.getLastRowNum(), 0)];
+            validValueIds = new BitSet[columnCount];
+            for (int c = 0; c < columnCount; c++) {
+                dictionaries.add(new HashMap<>());
+                validValueIds[c] = new BitSet();
+            }
+
+            for (int i = 1; i <= sheet.getLastRowNum(); i++) {
+                Row row = sheet.getRow(i);
+                if (row == null) continue;
+
+                int r = rows.size();
+                for (int c = 0; c < columnCount; c++) {
+                    String columnValue = getCellValue(row.getCell(schema.columnIndexes[c]));
+                    Map<String, Integer> dictionary = dictionaries.get(c);
+                    Integer id = dictionary.get(columnValue);
+                    if (id == null) {
+                        id = dictionary.size();
+                        dictionary.put(columnValue, id);
+                        if (isValidCell(columnValue, schema.columnRules[c])) {
+                            validValueIds[c].set(id);
+                        }
+                    }
+                    valueIds[c][r] = id;
+                }
+                rows.add(row);
+            }
+
+            valueCounts = new int[columnCount];
+            for (int c = 0; c < columnCount; c++) {
+                valueCounts[c] = dictionaries.get(c).size();
+            }
+        }
+
+        boolean isValid(int column, int row) {
+            return validValueIds[column].get(valueIds[column][row]);
+        }
+
+        // Bitmap over rows of those whose values pass the rules of every column, row r at bit r % 64 of word r / 64
+        long[] validRows() {
+            long[] rowMask = new long[(rows.size() + 63) >>> 6];
+            Arrays.fill(rowMask, -1L);
+            if (rows.size() % 64 != 0) {
+                rowMask[rowMask.length - 1] = (1L << rows.size()) - 1;  // No bits for rows past the end
+            }
+            for (int c = 0; c < valueIds.length; c++) {
+                ROW_MASK_KERNEL.and(valueIds[c], rows.size(), validValueIds[c], valueCounts[c], rowMask);
+            }
+            return rowMask;
+        }
+    }
+
+    // Clears the bit of each row whose value id in one column is not among the valid ids; row r is bit r % 64 of
+    // word r / 64. Implemented here for scalar code and in vectormask.java with the Vector API.
+    interface RowMaskKernel {
+        void and(int[] valueIds, int rowCount, BitSet validIds, int idCount, long[] rowMask);
+    }
+
+    static class ScalarRowMasks implements RowMaskKernel {
+        @Override
+        public void and(int[] valueIds, int rowCount, BitSet validIds, int idCount, long[] rowMask) {
+            for (int word = 0; word * 64 < rowCount; word++) {
+                long bits = 0;
+                int end = Math.min(word * 64 + 64, rowCount);
+                for (int r = word * 64; r < end; r++) {
+                    if (validIds.get(valueIds[r])) {
+                        bits |= 1L << r;
+                    }
+                }
+                rowMask[word] &= bits;
+            }
+        }
+    }
+
+    private static RowMaskKernel loadRowMaskKernel() {
+        if (Boolean.parseBoolean(System.getProperty("validator.vectorMasks", "true"))) {
+            try {
+                return (RowMaskKernel) Class.forName("validator.VectorRowMasks").getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException | LinkageError e) {
+                // Not compiled in, or the incubator module was not added: use the scalar kernel
+            }
+        }
+        return new ScalarRowMasks();
+    }
+
+    // Appends a column to one worksheet of an .xlsx without loading it: the sheet XML is streamed and a cell is
+    // added at the end of every row that has a value, while all other zip entries are copied unchanged.
+    // The rewritten file replaces the original through a temp file and an atomic move.
+    private static class ResultColumnWriter {
+        // ref of <dimension>, e.g. "A1:K500" or "A1"
+        private static final Pattern DIMENSION_REF =
+                Pattern.compile("(\\sref=([\"']))([A-Z]+)([0-9]+)(?::([A-Z]+)([0-9]+))?\\2");
+        // spans of <row>, 1-based first and last column, e.g. "1:11"
+        private static final Pattern SPANS = Pattern.compile("(\\sspans=([\"']))([0-9]+):([0-9]+)\\2");
+
+        private final OutputStream out;
+        private final String column;   // Column letters, e.g. "L"
+        private final String[] values; // By 0-based row number; null leaves the row as it is
+        private byte[] tag = new byte[256];
+        private int tagLength;
+        private int rowNum = -1;       // Row of the <row> element being copied
+        private String prefix = "";    // Namespace prefix of the sheet elements, usually none
+
+        private ResultColumnWriter(OutputStream out, int colIndex, String[] values) {
+            this.out = out;
+            this.column = columnLetters(colIndex);
+            this.values = values;
+        }
+
+        static void append(Path file, String sheetPartName, int colIndex, String[] values) throws IOException {
+            String sheetEntryName = sheetPartName.startsWith("/") ? sheetPartName.substring(1) : sheetPartName;
+            Path tempFile = Files.createTempFile(file.toAbsolutePath().getParent(), file.getFileName().toString(), ".tmp");
+            try (ZipFile zip = new ZipFile(file.toFile());
+                 ZipArchiveOutputStream zipOut = new ZipArchiveOutputStream(
+                         new BufferedOutputStream(Files.newOutputStream(tempFile)))) {
+                Enumeration<ZipArchiveEntry> entries = zip.getEntries();
+                while (entries.hasMoreElements()) {
+                    ZipArchiveEntry entry = entries.nextElement();
+                    if (!entry.getName().equals(sheetEntryName)) {
+                        // Still compressed, so other parts are not inflated and deflated again
+                        zipOut.addRawArchiveEntry(entry, zip.getRawInputStream(entry));
+                        continue;
+                    }
+                    zipOut.putArchiveEntry(new ZipArchiveEntry(entry.getName()));
+                    try (InputStream in = zip.getInputStream(entry)) {
+                        new ResultColumnWriter(zipOut, colIndex, values).copySheet(in);
+                    }
+                    zipOut.closeArchiveEntry();
+                }
+            } catch (IOException e) {
+                Files.deleteIfExists(tempFile);
+                throw e;
+            }
+            Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        // Text is copied as it is read; tags are collected so row tags can be inspected before writing them.
+        // A '>' inside a quoted attribute value does not end the tag.
+        private void copySheet(InputStream in) throws IOException {
+            byte[] buffer = new byte[1 << 16];
+            boolean inTag = false;
+            byte quote = 0;                // Quote of the attribute value being read, 0 outside of one
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                int start = 0;
+                for (int i = 0; i < read; i++) {
+                    if (!inTag && buffer[i] == '<') {
+                        out.write(buffer, start, i - start);
+                        inTag = true;
+                        tagLength = 0;
+                        start = i;
+                    } else if (inTag && quote != 0) {
+                        if (buffer[i] == quote) quote = 0;
+                    } else if (inTag && (buffer[i] == '"' || buffer[i] == '\'')) {
+                        quote = buffer[i];
+                    } else if (inTag && buffer[i] == '>') {
+                        addToTag(buffer, start, i + 1 - start);
+                        writeTag();
+                        inTag = false;
+                        start = i + 1;
+                    }
+                }
+                if (inTag) {
+                    addToTag(buffer, start, read - start);
+                } else {
+                    out.write(buffer, start, read - start);
+                }
+            }
+        }
+
+        private void addToTag(byte[] bytes, int offset, int length) {
+            if (tagLength + length > tag.length) {
+                tag = Arrays.copyOf(tag, Math.max(tag.length * 2, tagLength + length));
+            }
+            System.arraycopy(bytes, offset, tag, tagLength, length);
+            tagLength += length;
+        }
+
+        private void writeTag() throws IOException {
+            boolean closing = tag[1] == '/';
+            int nameStart = closing ? 2 : 1;
+            int nameEnd = nameStart;
+            while (nameEnd < tagLength && tag[nameEnd] != ' ' && tag[nameEnd] != '/' && tag[nameEnd] != '>'
+                    && tag[nameEnd] != '\t' && tag[nameEnd] != '\r' && tag[nameEnd] != '\n') {
+                nameEnd++;
+            }
+            if (!closing && isElement(nameStart, nameEnd, "dimension")) {
+                out.write(widenDimension(new String(tag, 0, tagLength, StandardCharsets.UTF_8))
+                        .getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+            boolean isRow = isElement(nameStart, nameEnd, "row");
+            if (!isRow) {
+                out.write(tag, 0, tagLength);
+                return;
+            }
+
+            if (closing) {
+                writeCell();
+                out.write(tag, 0, tagLength);
+                return;
+            }
+
+            prefix = new String(tag, nameStart, nameEnd - 3 - nameStart, StandardCharsets.UTF_8);
+            int rowNumber = rowNumberAttribute(nameEnd);
+            rowNum = rowNumber > 0 ? rowNumber - 1 : rowNum + 1; // r is optional and 1-based
+            if (value() == null) {
+                out.write(tag, 0, tagLength);
+                return;
+            }
+            String rowTag = widenSpans(new String(tag, 0, tagLength, StandardCharsets.UTF_8));
+            if (rowTag.endsWith("/>")) {
+                // <row .../> has no cells yet; open it so the result cell fits inside
+                out.write((rowTag.substring(0, rowTag.length() - 2) + ">").getBytes(StandardCharsets.UTF_8));
+                writeCell();
+                out.write(("</" + prefix + "row>").getBytes(StandardCharsets.UTF_8));
+            } else {
+                out.write(rowTag.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+
+        // The tag's local name is name, with or without a namespace prefix
+        private boolean isElement(int nameStart, int nameEnd, String name) {
+            int localStart = nameEnd - name.length();
+            if (localStart < nameStart || (localStart > nameStart && tag[localStart - 1] != ':')) return false;
+            for (int i = 0; i < name.length(); i++) {
+                if (tag[localStart + i] != name.charAt(i)) return false;
+            }
+            return true;
+        }
+
+        // Stretch the used range over the appended cells, so readers that size the sheet from it see the results
+        private String widenDimension(String dimensionTag) {
+            Matcher ref = DIMENSION_REF.matcher(dimensionTag);
+            if (!ref.find()) return dimensionTag;
+            String lastColumn = ref.group(5) != null ? ref.group(5) : ref.group(3);
+            int lastRow = Integer.parseInt(ref.group(6) != null ? ref.group(6) : ref.group(4));
+            for (int r = values.length - 1; r >= lastRow; r--) {
+                if (values[r] != null) {
+                    lastRow = r + 1;
+                    break;
+                }
+            }
+            if (columnIndex(lastColumn) < columnIndex(column)) lastColumn = column;
+            return dimensionTag.substring(0, ref.start()) + ref.group(1) + ref.group(3) + ref.group(4) + ":" + lastColumn
+                    + lastRow + ref.group(2) + dimensionTag.substring(ref.end());
+        }
+
+        // Stretch the row's spans hint over the result cell
+        private String widenSpans(String rowTag) {
+            Matcher spans = SPANS.matcher(rowTag);
+            if (!spans.find()) return rowTag;
+            int lastColumn = Math.max(Integer.parseInt(spans.group(4)), columnIndex(column) + 1);
+            return rowTag.substring(0, spans.start()) + spans.group(1) + spans.group(3) + ":" + lastColumn
+                    + spans.group(2) + rowTag.substring(spans.end());
+        }
+
+        private int rowNumberAttribute(int from) {
+            for (int i = from; i + 3 < tagLength; i++) {
+                boolean space = tag[i] == ' ' || tag[i] == '\t' || tag[i] == '\r' || tag[i] == '\n';
+                if (space && tag[i + 1] == 'r' && tag[i + 2] == '=' && (tag[i + 3] == '"' || tag[i + 3] == '\'')) {
+                    int number = 0;
+                    for (int j = i + 4; j < tagLength && tag[j] >= '0' && tag[j] <= '9'; j++) {
+                        number = number * 10 + (tag[j] - '0');
+                    }
+                    return number;
+                }
+            }
+            return -1;
+        }
+
+        private String value() {
+            return rowNum >= 0 && rowNum < values.length ? values[rowNum] : null;
+        }
+
+        private void writeCell() throws IOException {
+            String value = value();
+            if (value == null) return;
+            String cell = "<" + prefix + "c r=\"" + column + (rowNum + 1) + "\" t=\"inlineStr\"><" + prefix + "is><"
+                    + prefix + "t>" + escapeXml(value) + "</" + prefix + "t></" + prefix + "is></" + prefix + "c>";
+            out.write(cell.getBytes(StandardCharsets.UTF_8));
+        }
+
+        private static String escapeXml(String value) {
+            return value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+        }
+
+        // "A" -> 0, "Z" -> 25, "AA" -> 26
+        private static int columnIndex(String letters) {
+            int n = 0;
+            for (int i = 0; i < letters.length(); i++) {
+                n = n * 26 + (letters.charAt(i) - 'A' + 1);
+            }
+            return n - 1;
+        }
+
+        // 0 -> "A", 25 -> "Z", 26 -> "AA"
+        private static String columnLetters(int colIndex) {
+            StringBuilder letters = new StringBuilder();
+            for (int n = colIndex + 1; n > 0; n = (n - 1) / 26) {
+                letters.insert(0, (char) ('A' + (n - 1) % 26));
+            }
+            return letters.toString();
+        }
+    }
 }
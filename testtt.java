@@ -1,10 +1,16 @@
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipFile;
 import org.apache.poi.ss.usermodel.*;
+import org.apache.poi.xssf.usermodel.XSSFSheet;
 import org.apache.poi.xssf.usermodel.XSSFWorkbook;
 
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.IOException;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
 import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public class ExcelValidatorWithAdditionalRules {
 
@@ -60,16 +66,21 @@ public class ExcelValidatorWithAdditionalRules {
     }
 
     private static void validateAndWriteResults(String filePath, Map<String, Map<String, List<String>>> rules) throws IOException {
+        String sheetPartName;
+        int resultColIndex;
+        String[] results;
+
         try (FileInputStream fis = new FileInputStream(filePath);
-             Workbook workbook = new XSSFWorkbook(fis);
-             FileOutputStream fos = new FileOutputStream(filePath)) {
+             XSSFWorkbook workbook = new XSSFWorkbook(fis)) {
 
-            Sheet sheet = workbook.getSheetAt(0);
+            XSSFSheet sheet = workbook.getSheetAt(0);
             Row headerRow = sheet.getRow(0);
+            sheetPartName = sheet.getPackagePart().getPartName().getName();
 
-            // Add a new column for the validation result
-            int resultColIndex = headerRow.getPhysicalNumberOfCells();
-            headerRow.createCell(resultColIndex).setCellValue("Result");
+            // Add a new column for the validation result, right of every existing cell
+            resultColIndex = headerRow.getLastCellNum();
+            results = new String[sheet.getLastRowNum() + 1];
+            results[headerRow.getRowNum()] = "Result";
 
             int checkCol = findColumnIndex(headerRow, "Check");
             int col1Index = findColumnIndex(headerRow, "Column1");
@@ -95,12 +106,13 @@ public class ExcelValidatorWithAdditionalRules {
                 }
 
                 // Set the validation result in the new column
-                row.createCell(resultColIndex).setCellValue(result);
+                resultColIndex = Math.max(resultColIndex, row.getLastCellNum());
+                results[row.getRowNum()] = result;
             }
-
-            // Write the updated workbook to the same file
-            workbook.write(fos);
         }
+
+        // Write the results into the same file, rewriting only the sheet XML
+        ResultColumnWriter.append(Paths.get(filePath), sheetPartName, resultColIndex, results);
     }
 
     private static boolean validateColumn1(String column1Value, List<String> validValues) {
@@ -140,4 +152,225 @@ public class ExcelValidatorWithAdditionalRules {
         }
         throw new IllegalArgumentException("Column " + columnName + " not found");
     }
+
+    // Appends a column to one worksheet of an .xlsx without loading it: the sheet XML is streamed and a cell is
+    // added at the end of every row that has a value, while all other zip entries are copied unchanged.
+    // The rewritten file replaces the original through a temp file and an atomic move.
+    private static class ResultColumnWriter {
+        // ref of <dimension>, e.g. "A1:K500" or "A1"
+        private static final Pattern DIMENSION_REF =
+                Pattern.compile("(\\sref=([\"']))([A-Z]+)([0-9]+)(?::([A-Z]+)([0-9]+))?\\2");
+        // spans of <row>, 1-based first and last column, e.g. "1:11"
+        private static final Pattern SPANS = Pattern.compile("(\\sspans=([\"']))([0-9]+):([0-9]+)\\2");
+
+        private final OutputStream out;
+        private final String column;   // Column letters, e.g. "L"
+        private final String[] values; // By 0-based row number; null leaves the row as it is
+        private byte[] tag = new byte[256];
+        private int tagLength;
+        private int rowNum = -1;       // Row of the <row> element being copied
+        private String prefix = "";    // Namespace prefix of the sheet elements, usually none
+
+        private ResultColumnWriter(OutputStream out, int colIndex, String[] values) {
+            this.out = out;
+            this.column = columnLetters(colIndex);
+            this.values = values;
+        }
+
+        static void append(Path file, String sheetPartName, int colIndex, String[] values) throws IOException {
+            String sheetEntryName = sheetPartName.startsWith("/") ? sheetPartName.substring(1) : sheetPartName;
+            Path tempFile = Files.createTempFile(file.toAbsolutePath().getParent(), file.getFileName().toString(), ".tmp");
+            try (ZipFile zip = new ZipFile(file.toFile());
+                 ZipArchiveOutputStream zipOut = new ZipArchiveOutputStream(
+                         new BufferedOutputStream(Files.newOutputStream(tempFile)))) {
+                Enumeration<ZipArchiveEntry> entries = zip.getEntries();
+                while (entries.hasMoreElements()) {
+                    ZipArchiveEntry entry = entries.nextElement();
+                    if (!entry.getName().equals(sheetEntryName)) {
+                        // Still compressed, so other parts are not inflated and deflated again
+                        zipOut.addRawArchiveEntry(entry, zip.getRawInputStream(entry));
+                        continue;
+                    }
+                    zipOut.putArchiveEntry(new ZipArchiveEntry(entry.getName()));
+                    try (InputStream in = zip.getInputStream(entry)) {
+                        new ResultColumnWriter(zipOut, colIndex, values).copySheet(in);
+                    }
+                    zipOut.closeArchiveEntry();
+                }
+            } catch (IOException e) {
+                Files.deleteIfExists(tempFile);
+                throw e;
+            }
+            Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        // Text is copied as it is read; tags are collected so row tags can be inspected before writing them.
+        // A '>' inside a quoted attribute value does not end the tag.
+        private void copySheet(InputStream in) throws IOException {
+            byte[] buffer = new byte[1 << 16];
+            boolean inTag = false;
+            byte quote = 0;                // Quote of the attribute value being read, 0 outside of one
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                int start = 0;
+                for (int i = 0; i < read; i++) {
+                    if (!inTag && buffer[i] == '<') {
+                        out.write(buffer, start, i - start);
+                        inTag = true;
+                        tagLength = 0;
+                        start = i;
+                    } else if (inTag && quote != 0) {
+                        if (buffer[i] == quote) quote = 0;
+                    } else if (inTag && (buffer[i] == '"' || buffer[i] == '\'')) {
+                        quote = buffer[i];
+                    } else if (inTag && buffer[i] == '>') {
+                        addToTag(buffer, start, i + 1 - start);
+                        writeTag();
+                        inTag = false;
+                        start = i + 1;
+                    }
+                }
+                if (inTag) {
+                    addToTag(buffer, start, read - start);
+                } else {
+                    out.write(buffer, start, read - start);
+                }
+            }
+        }
+
+        private void addToTag(byte[] bytes, int offset, int length) {
+            if (tagLength + length > tag.length) {
+                tag = Arrays.copyOf(tag, Math.max(tag.length * 2, tagLength + length));
+            }
+            System.arraycopy(bytes, offset, tag, tagLength, length);
+            tagLength += length;
+        }
+
+        private void writeTag() throws IOException {
+            boolean closing = tag[1] == '/';
+            int nameStart = closing ? 2 : 1;
+            int nameEnd = nameStart;
+            while (nameEnd < tagLength && tag[nameEnd] != ' ' && tag[nameEnd] != '/' && tag[nameEnd] != '>'
+                    && tag[nameEnd] != '\t' && tag[nameEnd] != '\r' && tag[nameEnd] != '\n') {
+                nameEnd++;
+            }
+            if (!closing && isElement(nameStart, nameEnd, "dimension")) {
+                out.write(widenDimension(new String(tag, 0, tagLength, StandardCharsets.UTF_8))
+                        .getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+            boolean isRow = isElement(nameStart, nameEnd, "row");
+            if (!isRow) {
+                out.write(tag, 0, tagLength);
+                return;
+            }
+
+            if (closing) {
+                writeCell();
+                out.write(tag, 0, tagLength);
+                return;
+            }
+
+            prefix = new String(tag, nameStart, nameEnd - 3 - nameStart, StandardCharsets.UTF_8);
+            int rowNumber = rowNumberAttribute(nameEnd);
+            rowNum = rowNumber > 0 ? rowNumber - 1 : rowNum + 1; // r is optional and 1-based
+            if (value() == null) {
+                out.write(tag, 0, tagLength);
+                return;
+            }
+            String rowTag = widenSpans(new String(tag, 0, tagLength, StandardCharsets.UTF_8));
+            if (rowTag.endsWith("/>")) {
+                // <row .../> has no cells yet; open it so the result cell fits inside
+                out.write((rowTag.substring(0, rowTag.length() - 2) + ">").getBytes(StandardCharsets.UTF_8));
+                writeCell();
+                out.write(("</" + prefix + "row>").getBytes(StandardCharsets.UTF_8));
+            } else {
+                out.write(rowTag.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+
+        // The tag's local name is name, with or without a namespace prefix
+        private boolean isElement(int nameStart, int nameEnd, String name) {
+            int localStart = nameEnd - name.length();
+            if (localStart < nameStart || (localStart > nameStart && tag[localStart - 1] != ':')) return false;
+            for (int i = 0; i < name.length(); i++) {
+                if (tag[localStart + i] != name.charAt(i)) return false;
+            }
+            return true;
+        }
+
+        // Stretch the used range over the appended cells, so readers that size the sheet from it see the results
+        private String widenDimension(String dimensionTag) {
+            Matcher ref = DIMENSION_REF.matcher(dimensionTag);
+            if (!ref.find()) return dimensionTag;
+            String lastColumn = ref.group(5) != null ? ref.group(5) : ref.group(3);
+            int lastRow = Integer.parseInt(ref.group(6) != null ? ref.group(6) : ref.group(4));
+            for (int r = values.length - 1; r >= lastRow; r--) {
+                if (values[r] != null) {
+                    lastRow = r + 1;
+                    break;
+                }
+            }
+            if (columnIndex(lastColumn) < columnIndex(column)) lastColumn = column;
+            return dimensionTag.substring(0, ref.start()) + ref.group(1) + ref.group(3) + ref.group(4) + ":" + lastColumn
+                    + lastRow + ref.group(2) + dimensionTag.substring(ref.end());
+        }
+
+        // Stretch the row's spans hint over the result cell
+        private String widenSpans(String rowTag) {
+            Matcher spans = SPANS.matcher(rowTag);
+            if (!spans.find()) return rowTag;
+            int lastColumn = Math.max(Integer.parseInt(spans.group(4)), columnIndex(column) + 1);
+            return rowTag.substring(0, spans.start()) + spans.group(1) + spans.group(3) + ":" + lastColumn
+                    + spans.group(2) + rowTag.substring(spans.end());
+        }
+
+        private int rowNumberAttribute(int from) {
+            for (int i = from; i + 3 < tagLength; i++) {
+                boolean space = tag[i] == ' ' || tag[i] == '\t' || tag[i] == '\r' || tag[i] == '\n';
+                if (space && tag[i + 1] == 'r' && tag[i + 2] == '=' && (tag[i + 3] == '"' || tag[i + 3] == '\'')) {
+                    int number = 0;
+                    for (int j = i + 4; j < tagLength && tag[j] >= '0' && tag[j] <= '9'; j++) {
+                        number = number * 10 + (tag[j] - '0');
+                    }
+                    return number;
+                }
+            }
+            return -1;
+        }
+
+        private String value() {
+            return rowNum >= 0 && rowNum < values.length ? values[rowNum] : null;
+        }
+
+        private void writeCell() throws IOException {
+            String value = value();
+            if (value == null) return;
+            String cell = "<" + prefix + "c r=\"" + column + (rowNum + 1) + "\" t=\"inlineStr\"><" + prefix + "is><"
+                    + prefix + "t>" + escapeXml(value) + "</" + prefix + "t></" + prefix + "is></" + prefix + "c>";
+            out.write(cell.getBytes(StandardCharsets.UTF_8));
+        }
+
+        private static String escapeXml(String value) {
+            return value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+        }
+
+        // "A" -> 0, "Z" -> 25, "AA" -> 26
+        private static int columnIndex(String letters) {
+            int n = 0;
+            for (int i = 0; i < letters.length(); i++) {
+                n = n * 26 + (letters.charAt(i) - 'A' + 1);
+            }
+            return n - 1;
+        }
+
+        // 0 -> "A", 25 -> "Z", 26 -> "AA"
+        private static String columnLetters(int colIndex) {
+            StringBuilder letters = new StringBuilder();
+            for (int n = colIndex + 1; n > 0; n = (n - 1) / 26) {
+                letters.insert(0, (char) ('A' + (n - 1) % 26));
+            }
+            return letters.toString();
+        }
+    }
 }
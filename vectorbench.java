@@ -0,0 +1,86 @@
+package validator;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+// JMH benchmark of the row-mask kernels of ExcelValidatorWithMultipleValues: scalar (one.java) against the Vector
+// API one (vectormask.java). JMH generates its harness only for named packages, so the three files are in package
+// validator: compile them as validator/ExcelValidatorWithMultipleValues.java, validator/VectorRowMasks.java and
+// validator/RowMaskBenchmark.java with JMH's annotation processor, POI on the classpath and
+// --add-modules jdk.incubator.vector
+public class RowMaskBenchmark {
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(RowMaskBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+
+    // Dictionary-encoded rule columns of one Excel B sheet, generated with a fixed seed
+    @State(Scope.Benchmark)
+    public static class ColumnState {
+        @Param({"12", "50", "80"})
+        public int columnCount;
+
+        @Param({"4", "64"})
+        public int distinctValues;
+
+        @Param({"0.9"})
+        public double validShare;
+
+        @Param({"scalar", "vector"})
+        public String kernel;
+
+        @Param({"65536"})
+        public int rowCount;
+
+        int[][] valueIds;
+        BitSet[] validIds;
+        ExcelValidatorWithMultipleValues.RowMaskKernel rowMasks;
+
+        @Setup
+        public void setup() {
+            rowMasks = kernel.equals("vector")
+                    ? new VectorRowMasks()
+                    : new ExcelValidatorWithMultipleValues.ScalarRowMasks();
+            Random random = new Random(42);
+            valueIds = new int[columnCount][rowCount];
+            validIds = new BitSet[columnCount];
+            for (int c = 0; c < columnCount; c++) {
+                validIds[c] = new BitSet();
+                for (int id = 0; id < distinctValues; id++) {
+                    if (random.nextDouble() < validShare) validIds[c].set(id);
+                }
+                for (int r = 0; r < rowCount; r++) {
+                    valueIds[c][r] = random.nextInt(distinctValues);
+                }
+            }
+        }
+    }
+
+    // Same work as EncodedColumns.validRows: one mask over all rows, narrowed column by column
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+    @Warmup(iterations = 3, time = 1)
+    @Measurement(iterations = 5, time = 1)
+    public long[] validRows(ColumnState state) {
+        long[] rowMask = new long[(state.rowCount + 63) >>> 6];
+        Arrays.fill(rowMask, -1L);
+        if (state.rowCount % 64 != 0) {
+            rowMask[rowMask.length - 1] = (1L << state.rowCount) - 1;
+        }
+        for (int c = 0; c < state.columnCount; c++) {
+            state.rowMasks.and(state.valueIds[c], state.rowCount, state.validIds[c], state.distinctValues, rowMask);
+        }
+        return rowMask;
+    }
+}
@@ -0,0 +1,92 @@
+package validator;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+import java.util.BitSet;
+
+// Vector API row-mask kernel for ExcelValidatorWithMultipleValues (one.java). Compile and run both files together
+// with --add-modules jdk.incubator.vector; without this class or the module, one.java uses its scalar kernel.
+class VectorRowMasks implements ExcelValidatorWithMultipleValues.RowMaskKernel {
+    private static final VectorSpecies<Integer> SPECIES = IntVector.SPECIES_PREFERRED;
+    // Id sets up to this size are tested by comparing against each id; larger ones through a gathered lookup table
+    private static final int SMALL_SET = 4;
+
+    @Override
+    public void and(int[] valueIds, int rowCount, BitSet validIds, int idCount, long[] rowMask) {
+        int validCount = validIds.cardinality();
+        if (validCount == idCount) return;  // Every value passes
+        if (validCount <= SMALL_SET) {
+            andCompared(valueIds, rowCount, ids(validIds, validCount), false, rowMask);
+        } else if (idCount - validCount <= SMALL_SET) {
+            BitSet invalidIds = (BitSet) validIds.clone();
+            invalidIds.flip(0, idCount);
+            andCompared(valueIds, rowCount, ids(invalidIds, idCount - validCount), true, rowMask);
+        } else {
+            andGathered(valueIds, rowCount, validIds, idCount, rowMask);
+        }
+    }
+
+    // A row passes when its id equals one of ids, or with exclude when it equals none of them
+    private static void andCompared(int[] valueIds, int rowCount, int[] ids, boolean exclude, long[] rowMask) {
+        int lanes = SPECIES.length();
+        for (int word = 0; word * 64 < rowCount; word++) {
+            int start = word * 64;
+            int end = Math.min(start + 64, rowCount);
+            long bits = 0;
+            int r = start;
+            for (; r + lanes <= end; r += lanes) {
+                IntVector rowIds = IntVector.fromArray(SPECIES, valueIds, r);
+                VectorMask<Integer> found = SPECIES.maskAll(false);
+                for (int id : ids) {
+                    found = found.or(rowIds.compare(VectorOperators.EQ, id));
+                }
+                bits |= (exclude ? found.not() : found).toLong() << (r - start);
+            }
+            for (; r < end; r++) {
+                boolean found = false;
+                for (int id : ids) {
+                    found |= valueIds[r] == id;
+                }
+                if (found != exclude) {
+                    bits |= 1L << r;
+                }
+            }
+            rowMask[word] &= bits;
+        }
+    }
+
+    // Each row's verdict is gathered from a table indexed by value id
+    private static void andGathered(int[] valueIds, int rowCount, BitSet validIds, int idCount, long[] rowMask) {
+        int[] valid = new int[idCount];
+        for (int id = validIds.nextSetBit(0); id >= 0 && id < idCount; id = validIds.nextSetBit(id + 1)) {
+            valid[id] = 1;
+        }
+        int lanes = SPECIES.length();
+        for (int word = 0; word * 64 < rowCount; word++) {
+            int start = word * 64;
+            int end = Math.min(start + 64, rowCount);
+            long bits = 0;
+            int r = start;
+            for (; r + lanes <= end; r += lanes) {
+                IntVector verdicts = IntVector.fromArray(SPECIES, valid, 0, valueIds, r);
+                bits |= verdicts.compare(VectorOperators.NE, 0).toLong() << (r - start);
+            }
+            for (; r < end; r++) {
+                bits |= (long) valid[valueIds[r]] << r;
+            }
+            rowMask[word] &= bits;
+        }
+    }
+
+    private static int[] ids(BitSet idSet, int count) {
+        int[] ids = new int[count];
+        int i = 0;
+        for (int id = idSet.nextSetBit(0); id >= 0 && i < count; id = idSet.nextSetBit(id + 1)) {
+            ids[i++] = id;
+        }
+        return ids;
+    }
+}